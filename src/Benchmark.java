@@ -0,0 +1,522 @@
+/**
+ * 
+ *  @author Lyes Djemaa
+ *  @version 1.0
+ * Our class Benchmark, 
+ *  it measures parts of the system inside a single JVM, no registry nor config file are needed
+ * <p> 
+ *  - contention : a stress test of the lock-free cells of a machine, 16 threads reserve, consume, abort and produce
+ *      at random on 3 resources while another one reads the cells, the units left must be exactly the initial ones
+ *      plus the ones produced minus the ones consumed, nothing reserved, and no cell ever seen negative
+ *      it runs with --writer shared then single, iterations is the number of operations of each thread there
+ *  - wire : bytes per call and calls per second of the MachineService payloads,
+ *      the former ones (String replies, Serializable resource, comma-joined directory)
+ *      against the current ones (Status code, Externalizable Resource, Directory)
+ *      like RMI, each call is marshalled in a fresh object stream
+ *  - acquire : committed reactions per second of two executors with --acquire parallel then ordered,
+ *      on the workloads of test1 (both need A and C) and test2 (A and C apart)
+ *      A and C are scarce : they start with 2 units and a source produces one of each every millisecond
+ *      machines are called directly, each call delayed by LATENCY_MILLIS to stand for the network
+ *      iterations is the number of attempts of each worker there
+ *  - wal : transactions per second of a machine (tryTo, consume, produce) in memory then with a write-ahead log,
+ *      with 1 then 16 threads, the log is in a temporary directory and opened again at the end to check the replay
+ *      records per force shows how many records the group commit made durable with one fsync
+ *      iterations is the number of transactions of each thread there
+ *  - snapshot : time to start a machine of iterations resources from --resource arguments
+ *      then from a snapshot of its inventory, and time to write the snapshot while it is serving
+ *  - writer : transactions per second of a machine (tryTo, consume, produce) with --writer shared then single,
+ *      with 1 then 16 threads, and the batches the single writer drained
+ *      iterations is the number of transactions of each thread there
+ * </p>
+ * Usage:
+ *   java Benchmark <contention|wire|acquire|wal|snapshot|writer> [iterations]
+ *
+ * Example of execution :
+ *   java Benchmark contention 100000
+ *   java Benchmark wire 200000
+ *   java Benchmark acquire 500
+ *   java Benchmark wal 2000
+ *   java Benchmark snapshot 1000000
+ *   java Benchmark writer 20000
+ */
+
+import main.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+
+
+public class Benchmark {
+
+    /**
+     * the Resource as it was sent before, with the default serialization
+     */
+    static class LegacyResource implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String name;
+        LegacyResource(String name) { this.name = name; }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: java Benchmark <contention|wire|acquire|wal|snapshot|writer> [iterations]");
+            System.exit(1);
+        }
+
+        int iterations = (args.length >= 2) ? Integer.parseInt(args[1]) : 100000;
+
+        switch (args[0]) {
+            case "contention":
+                contention(iterations);
+                break;
+            case "wire":
+                wire(iterations);
+                break;
+            case "acquire":
+                acquire((args.length >= 2) ? iterations : 300);
+                break;
+            case "wal":
+                wal((args.length >= 2) ? iterations : 2000);
+                break;
+            case "snapshot":
+                snapshot((args.length >= 2) ? iterations : 1000000);
+                break;
+            case "writer":
+                writer((args.length >= 2) ? iterations : 20000);
+                break;
+            default:
+                System.err.println("[Benchmark] Unknown benchmark: " + args[0]);
+                System.exit(1);
+        }
+    }
+
+    /**
+     * the threads count the units they produced and consumed, the checker the cells it saw negative
+     *  a transaction reserves 1 or 2 resources, then consumes or aborts them, a produce adds 1 to 3 units
+     */
+    private static void contention(int iterations) throws Exception {
+        Logger.getLogger("").setLevel(Level.WARNING);
+        Resource[] resources = { new Resource("A"), new Resource("B"), new Resource("C") };
+        final int initial = 8;
+        Map<Resource, Integer> declared = new HashMap<>();
+        for (Resource R : resources) declared.put(R, initial);
+        boolean exact = true;
+
+        for (boolean single : new boolean[] {false, true}) {
+            Machine machine = new Machine(declared, Machine.DEFAULT_LEASE_MILLIS, null, single);
+            AtomicLong[] produced = new AtomicLong[resources.length];
+            AtomicLong[] consumed = new AtomicLong[resources.length];
+            for (int r = 0; r < resources.length; ++r) {
+                produced[r] = new AtomicLong();
+                consumed[r] = new AtomicLong();
+            }
+            AtomicLong tx = new AtomicLong();
+            AtomicLong refused = new AtomicLong();
+            AtomicLong lost = new AtomicLong();
+            AtomicLong negative = new AtomicLong();
+            AtomicInteger running = new AtomicInteger(16);
+
+            Thread checker = new Thread(() -> {
+                while (running.get() > 0) {
+                    for (long cell : machine.quantities(resources)) {
+                        if (Inventory.available(cell) < 0 || Inventory.reserved(cell) < 0) negative.incrementAndGet();
+                    }
+                }
+            });
+
+            Thread[] workers = new Thread[running.get()];
+            for (int w = 0; w < workers.length; ++w) {
+                final Random rng = new Random(w);
+                workers[w] = new Thread(() -> {
+                    for (int i = 0; i < iterations; ++i) {
+                        int first = rng.nextInt(resources.length);
+                        if (rng.nextInt(5) == 0) {
+                            int n = 1 + rng.nextInt(3);
+                            machine.produce(resources[first], n);
+                            produced[first].addAndGet(n);
+                            continue;
+                        }
+
+                        Map<Resource, Integer> demand = new HashMap<>();
+                        demand.put(resources[first], 1 + rng.nextInt(2));
+                        int second = rng.nextInt(resources.length);
+                        if (second != first) demand.put(resources[second], 1 + rng.nextInt(2));
+
+                        long id = tx.incrementAndGet();
+                        if (machine.tryToAll(id, demand) != Status.RESERVED.code()) {
+                            refused.incrementAndGet();
+                            continue;
+                        }
+                        if (rng.nextBoolean()) {
+                            if (!machine.consumeAll(id, demand)) {
+                                lost.incrementAndGet();
+                                continue;
+                            }
+                            for (Map.Entry<Resource, Integer> e : demand.entrySet()) {
+                                consumed[Arrays.asList(resources).indexOf(e.getKey())].addAndGet(e.getValue());
+                            }
+                        }
+                        else if (!machine.abortAll(id, demand)) {
+                            lost.incrementAndGet();
+                        }
+                    }
+                    running.decrementAndGet();
+                });
+            }
+
+            long start = System.nanoTime();
+            checker.start();
+            for (Thread t : workers) t.start();
+            for (Thread t : workers) t.join();
+            checker.join();
+            long elapsed = System.nanoTime() - start;
+
+            StringBuilder expected = new StringBuilder();
+            boolean ok = negative.get() == 0 && lost.get() == 0 && machine.getActiveLeases() == 0;
+            for (int r = 0; r < resources.length; ++r) {
+                long units = initial + produced[r].get() - consumed[r].get();
+                ok &= machine.getResources().get(resources[r]) == units && machine.getReservedR(resources[r]) == 0;
+                expected.append(" (").append(resources[r]).append(',').append(units).append(')');
+            }
+            exact &= ok;
+
+            System.out.printf("[Benchmark] 16 threads %-6s %9.0f ops/s  %s expected%s  %d refused, %d lost, %d negative : %s%n",
+                              single ? "single" : "shared", workers.length * iterations / (elapsed / 1e9),
+                              machine.getInventory(), expected, refused.get(), lost.get(), negative.get(),
+                              ok ? "exact" : "WRONG");
+        }
+        System.exit(exact ? 0 : 1);
+    }
+
+    /**
+     * compare the payloads of tryTo (request and reply) and of enumResource (reply)
+     */
+    private static void wire(int iterations) throws IOException, ClassNotFoundException {
+        Resource[] directory = new Resource[50];
+        for (int i = 0; i < directory.length; ++i) {
+            directory[i] = new Resource("R" + i);
+        }
+        String legacyDirectory = Arrays.stream(directory).map(Object::toString).collect(Collectors.joining(","));
+
+        report("tryTo  before", iterations, () -> {
+            byte[] request = marshal(out -> { out.writeObject(new LegacyResource("A")); out.writeInt(1); });
+            byte[] reply = marshal(out -> out.writeObject("reserved"));
+            unmarshal(request, in -> { in.readObject(); in.readInt(); });
+            unmarshal(reply, in -> in.readObject());
+            return request.length + reply.length;
+        });
+
+        report("tryTo  after ", iterations, () -> {
+            byte[] request = marshal(out -> { out.writeObject(new Resource("A")); out.writeInt(1); });
+            byte[] reply = marshal(out -> out.writeInt(Status.RESERVED.code()));
+            unmarshal(request, in -> { in.readObject(); in.readInt(); });
+            unmarshal(reply, in -> in.readInt());
+            return request.length + reply.length;
+        });
+
+        report("enumResource before (50 resources)", iterations / 10, () -> {
+            byte[] reply = marshal(out -> out.writeObject(legacyDirectory));
+            unmarshal(reply, in -> {
+                for (String name : ((String) in.readObject()).split(",")) {
+                    new Resource(name);
+                }
+            });
+            return reply.length;
+        });
+
+        report("enumResource after  (50 resources)", iterations / 10, () -> {
+            byte[] reply = marshal(out -> out.writeObject(new Directory(directory)));
+            unmarshal(reply, in -> in.readObject());
+            return reply.length;
+        });
+    }
+
+    /**
+     * latency added to every call of the acquire benchmark, a LAN round trip
+     */
+    private static final long LATENCY_MILLIS = 1;
+
+    /**
+     * each workload with each acquisition mode, two executors of WORKERS workers
+     */
+    private static void acquire(int attempts) throws Exception {
+        Logger.getLogger("").setLevel(Level.WARNING);
+        final int WORKERS = 4;
+
+        String[][] workloads = { {"test1", "A + C -> B", "A + C -> D"}, {"test2", "A -> B", "C -> D"} };
+        for (String[] workload : workloads) {
+            for (String mode : new String[] {"parallel", "ordered"}) {
+                Map<Resource, Integer> stock1 = new HashMap<>();
+                stock1.put(new Resource("A"), 2);
+                stock1.put(new Resource("B"), 0);
+                Map<Resource, Integer> stock2 = new HashMap<>();
+                stock2.put(new Resource("C"), 2);
+                stock2.put(new Resource("D"), 0);
+
+                MachineService m1 = delayed(new Machine(stock1));
+                MachineService m2 = delayed(new Machine(stock2));
+                Map<Resource, MachineService> locations = new HashMap<>();
+                for (Resource R : stock1.keySet()) locations.put(R, m1);
+                for (Resource R : stock2.keySet()) locations.put(R, m2);
+
+                Executor[] executors = new Executor[2];
+                for (int e = 0; e < executors.length; ++e) {
+                    ReactionRule[] rules = Executor.parseReaction(new String[] {"--reaction", workload[e + 1]});
+                    executors[e] = new Executor(locations, rules, 5001 + e, Executor.newEngine("pool", 64), 64, 0,
+                                                SelectionPolicy.of("uniform", rules, 0, new Random(e)),
+                                                "ordered".equals(mode), null, ProductionPipeline.DEFAULT_BATCH_SIZE,
+                                                ProductionPipeline.DEFAULT_LINGER_MILLIS);
+                }
+
+                AtomicInteger committed = new AtomicInteger();
+                AtomicInteger locked = new AtomicInteger();
+                AtomicInteger insufficient = new AtomicInteger();
+                Thread[] workers = new Thread[executors.length * WORKERS];
+                for (int w = 0; w < workers.length; ++w) {
+                    Executor executor = executors[w % executors.length];
+                    workers[w] = new Thread(() -> {
+                        for (int i = 0; i < attempts; ++i) {
+                            AttemptResult result = executor.attemptReaction(executor.selectReaction(Pacing.fixed(executor.getReactions(), 0)));
+                            if (result == AttemptResult.COMMITTED) committed.incrementAndGet();
+                            else if (result == AttemptResult.LOCKED) locked.incrementAndGet();
+                            else if (result == AttemptResult.INSUFFICIENT) insufficient.incrementAndGet();
+                        }
+                    });
+                }
+
+                Thread source = new Thread(() -> {
+                    try {
+                        while (true) {
+                            TimeUnit.MILLISECONDS.sleep(1);
+                            m1.produce(new Resource("A"), 1);
+                            m2.produce(new Resource("C"), 1);
+                        }
+                    }
+                    catch (Exception e) {
+                        // interrupted, the run is over
+                    }
+                });
+
+                long start = System.nanoTime();
+                source.start();
+                for (Thread t : workers) t.start();
+                for (Thread t : workers) t.join();
+                long elapsed = System.nanoTime() - start;
+                source.interrupt();
+                source.join();
+
+                System.out.printf("[Benchmark] %-5s %-8s %6d attempts %6d committed %6d locked %6d insufficient %8.0f commits/s%n",
+                                  workload[0], mode, workers.length * attempts, committed.get(), locked.get(),
+                                  insufficient.get(), committed.get() / (elapsed / 1e9));
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * each number of threads, without then with the log
+     */
+    private static void wal(int transactions) throws Exception {
+        Logger.getLogger("").setLevel(Level.WARNING);
+        Resource A = new Resource("A");
+
+        for (int threads : new int[] {1, 16}) {
+            for (boolean durable : new boolean[] {false, true}) {
+                Path dir = Files.createTempDirectory("wal");
+                WriteAheadLog wal = durable ? new WriteAheadLog(dir, WriteAheadLog.DEFAULT_SEGMENT_SIZE) : null;
+                Machine machine = new Machine(Map.of(A, threads), Machine.DEFAULT_LEASE_MILLIS, wal);
+
+                AtomicLong tx = new AtomicLong();
+                Thread[] workers = new Thread[threads];
+                for (int w = 0; w < workers.length; ++w) {
+                    workers[w] = new Thread(() -> {
+                        for (int i = 0; i < transactions; ++i) {
+                            long id = tx.incrementAndGet();
+                            if (machine.tryTo(id, A, 1) != Status.RESERVED.code()) continue;
+                            machine.consume(id, A, 1);
+                            machine.produce(A, 1);
+                        }
+                    });
+                }
+
+                long start = System.nanoTime();
+                for (Thread t : workers) t.start();
+                for (Thread t : workers) t.join();
+                long elapsed = System.nanoTime() - start;
+
+                String replayed = "";
+                if (durable) {
+                    wal.close();
+                    try (WriteAheadLog reopened = new WriteAheadLog(dir, WriteAheadLog.DEFAULT_SEGMENT_SIZE)) {
+                        replayed = " replayed " + new Machine(Map.of(), Machine.DEFAULT_LEASE_MILLIS, reopened).getInventory();
+                    }
+                }
+                System.out.printf("[Benchmark] %2d threads %-6s %9.0f tx/s  wal : %s%s%n",
+                                  threads, durable ? "wal" : "memory", threads * transactions / (elapsed / 1e9),
+                                  machine.getWalMetrics(), replayed);
+
+                try (var files = Files.walk(dir)) {
+                    files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+                }
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * each number of threads, each thread applying its changes then one writer applying them all
+     */
+    private static void writer(int transactions) throws Exception {
+        Logger.getLogger("").setLevel(Level.WARNING);
+        Resource A = new Resource("A");
+
+        for (int threads : new int[] {1, 16}) {
+            for (boolean single : new boolean[] {false, true}) {
+                Machine machine = new Machine(Map.of(A, threads), Machine.DEFAULT_LEASE_MILLIS, null, single);
+
+                AtomicLong tx = new AtomicLong();
+                Thread[] workers = new Thread[threads];
+                for (int w = 0; w < workers.length; ++w) {
+                    workers[w] = new Thread(() -> {
+                        for (int i = 0; i < transactions; ++i) {
+                            long id = tx.incrementAndGet();
+                            if (machine.tryTo(id, A, 1) != Status.RESERVED.code()) continue;
+                            machine.consume(id, A, 1);
+                            machine.produce(A, 1);
+                        }
+                    });
+                }
+
+                long start = System.nanoTime();
+                for (Thread t : workers) t.start();
+                for (Thread t : workers) t.join();
+                long elapsed = System.nanoTime() - start;
+
+                System.out.printf("[Benchmark] %2d threads %-6s %9.0f tx/s  %s  writer : %s%n",
+                                  threads, single ? "single" : "shared", threads * transactions / (elapsed / 1e9),
+                                  machine.getInventory(), machine.getWriterMetrics());
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * start a machine of resources resources from arguments, snapshot it under load, start one from the snapshot
+     *  the names are already interned when the snapshot is loaded, the first start paid for it
+     */
+    private static void snapshot(int resources) throws Exception {
+        Logger.getLogger("").setLevel(Level.WARNING);
+
+        String[] args = new String[2 * resources];
+        for (int i = 0; i < resources; ++i) {
+            args[2 * i] = "--resource";
+            args[2 * i + 1] = "(R" + i + "," + (i % 100) + ")";
+        }
+
+        long start = System.nanoTime();
+        Machine fromArgs = new Machine(Machine.parsePairs(args));
+        long parsed = System.nanoTime() - start;
+
+        // traffic on the machine while the snapshot is written
+        Resource R0 = new Resource("R1");
+        Thread traffic = new Thread(() -> {
+            long tx = 0;
+            while (!Thread.currentThread().isInterrupted()) {
+                if (fromArgs.tryTo(++tx, R0, 1) == Status.RESERVED.code()) fromArgs.abort(tx, R0, 1);
+            }
+        });
+        traffic.start();
+
+        Path file = Files.createTempFile("inventory", ".snapshot");
+        start = System.nanoTime();
+        fromArgs.snapshot(file);
+        long written = System.nanoTime() - start;
+        traffic.interrupt();
+        traffic.join();
+
+        start = System.nanoTime();
+        Machine fromSnapshot = new Machine(InventorySnapshot.load(file));
+        long loaded = System.nanoTime() - start;
+
+        System.out.printf("[Benchmark] %d resources : start from --resource %6d ms, snapshot written in %5d ms (%d MB),"
+                          + " start from snapshot %5d ms, same inventory : %b%n",
+                          resources, parsed / 1_000_000, written / 1_000_000, Files.size(file) >> 20,
+                          loaded / 1_000_000, fromArgs.getResources().equals(fromSnapshot.getResources()));
+        Files.delete(file);
+        System.exit(0);
+    }
+
+    /**
+     * the machine behind a proxy sleeping LATENCY_MILLIS before each call
+     */
+    private static MachineService delayed(MachineService machine) {
+        return (MachineService) Proxy.newProxyInstance(MachineService.class.getClassLoader(),
+                                                       new Class<?>[] {MachineService.class},
+                                                       (proxy, method, arguments) -> {
+            TimeUnit.MILLISECONDS.sleep(LATENCY_MILLIS);
+            try {
+                return method.invoke(machine, arguments);
+            }
+            catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        });
+    }
+
+    interface Call { int run() throws IOException, ClassNotFoundException; }
+    interface Writer { void write(ObjectOutputStream out) throws IOException; }
+    interface Reader { void read(ObjectInputStream in) throws IOException, ClassNotFoundException; }
+
+    /**
+     * run a call iterations times after a warm up, then print its bytes per call and calls per second
+     */
+    private static void report(String name, int iterations, Call call) throws IOException, ClassNotFoundException {
+        for (int i = 0; i < iterations / 10; ++i) {
+            call.run();
+        }
+
+        long bytes = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            bytes += call.run();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.printf("[Benchmark] %-36s %6d bytes/call %12.0f calls/s%n",
+                          name, bytes / iterations, iterations / (elapsed / 1e9));
+    }
+
+    private static byte[] marshal(Writer writer) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(buffer)) {
+            writer.write(out);
+        }
+        return buffer.toByteArray();
+    }
+
+    private static void unmarshal(byte[] bytes, Reader reader) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            reader.read(in);
+        }
+    }
+}
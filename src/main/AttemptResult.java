@@ -0,0 +1,31 @@
+/**
+ * @author Lyes Djemaa
+ * @version 1.0
+ * 
+ * The enum AttemptResult
+ * 
+ * It tells how an attempt of a reaction ended @see Executor#attemptReaction
+ * 
+ *  - COMMITTED : every machine reserved its part, the reaction was made
+ *  - LOCKED : a machine lacked units held by the reservations of other transactions (even after waiting for them)
+ *  - INSUFFICIENT : a machine lacked units at all
+ *  - FAILED : a machine could not be reached or the executor failed during the 2PC
+ */
+package main;
+
+public enum AttemptResult {
+    COMMITTED, LOCKED, INSUFFICIENT, FAILED;
+
+    /**
+     * @param refusal the answer of the machine that voted "NO"
+     * @return the result of an attempt aborted because of it
+     */
+    public static AttemptResult refused(Status refusal) {
+        switch (refusal) {
+            case LOCKED:
+            case TIMEOUT: return LOCKED;
+            case INSUFFICIENT: return INSUFFICIENT;
+            default: return FAILED;
+        }
+    }
+}
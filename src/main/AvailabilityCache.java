@@ -0,0 +1,99 @@
+/**
+ * @author Lyes Djemaa
+ * @version 1.0
+ *
+ * A small class AvailabilityCache
+ *
+ * what an Executor last learned about the units of each resource, indexed by resource id @see ResourceRegistry
+ *  each entry is a cell packed like the ones of the machines (available, reserved) @see Inventory
+ *  with the time it was read, it is only trusted during the staleness bound
+ *
+ * the cache is a hint : it lets the executor skip the reactions that would be refused as INSUFFICIENT
+ *  without running a 2PC for it, the machines stay the only ones deciding
+ *
+ *  - filled by the bulk query MachineService#quantities when entries are stale
+ *  - an INSUFFICIENT answer to tryToAll forgets the entries of its demand, so they are read again
+ *  - a production of the executor adds its units to the entry
+ */
+package main;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+class AvailabilityCache {
+
+    /**
+     * cell value of a resource never read (or forgotten)
+     */
+    static final long UNKNOWN = -1L;
+
+    private final AtomicLongArray cells;
+    private final AtomicLongArray readAt;
+    private final long stalenessNanos;
+
+    /**
+     * @param capacity number of resource ids known by the executor
+     * @param stalenessMillis how long an entry is trusted after it was read
+     */
+    AvailabilityCache(int capacity, long stalenessMillis) {
+        this.cells = new AtomicLongArray(capacity);
+        this.readAt = new AtomicLongArray(capacity);
+        this.stalenessNanos = stalenessMillis * 1_000_000L;
+        for (int id = 0; id < capacity; ++id) {
+            this.cells.set(id, UNKNOWN);
+        }
+    }
+
+    /**
+     * @return the cell of R if it is still trusted, UNKNOWN otherwise
+     */
+    long fresh(Resource R, long now) {
+        int id = R.getId();
+        if (id >= cells.length()) return UNKNOWN;
+
+        long cell = cells.get(id);
+        if (cell == UNKNOWN || now - readAt.get(id) > stalenessNanos) return UNKNOWN;
+        return cell;
+    }
+
+    /**
+     * @return the last cell known for R whatever its age, UNKNOWN if none
+     *  for a cache kept up to date by the changes of the machines @see ReactiveScheduler
+     */
+    long last(Resource R) {
+        int id = R.getId();
+        return (id < cells.length()) ? cells.get(id) : UNKNOWN;
+    }
+
+    /**
+     * store what a machine answered for R
+     */
+    void record(Resource R, long cell, long now) {
+        int id = R.getId();
+        if (id >= cells.length()) return;
+
+        readAt.set(id, now);
+        cells.set(id, cell);
+    }
+
+    /**
+     * forget R, the next selection reads it again
+     */
+    void invalidate(Resource R) {
+        int id = R.getId();
+        if (id < cells.length()) cells.set(id, UNKNOWN);
+    }
+
+    /**
+     * n units of R were produced by this executor
+     */
+    void produced(Resource R, int n) {
+        int id = R.getId();
+        if (id >= cells.length()) return;
+
+        long cell;
+        do {
+            cell = cells.get(id);
+            if (cell == UNKNOWN) return;
+        } while (!cells.compareAndSet(id, cell, Inventory.pack(Inventory.available(cell) + n, Inventory.reserved(cell))));
+    }
+}
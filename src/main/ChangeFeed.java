@@ -0,0 +1,127 @@
+/**
+ * @author Lyes Djemaa
+ * @version 1.0
+ *
+ * A small class ChangeFeed
+ *
+ * the recent changes of the inventory of a Machine, kept in a ring so executors can follow them @see Machine#pollChanges
+ *  every produce, consume and abort (or expiry) publishes the resource it touched under the next sequence number
+ *
+ * a change carries the cell of the resource read after its sequence number was taken, not a delta :
+ *  the change with the highest number is never older than the others, so a reader applying them in order
+ *  always ends with the current units, even when publishers race
+ *
+ * reservations are not published, a reader learns about them with the next consume or abort
+ *
+ * publishing is lock-free, a reader waiting for changes parks on the monitor of the feed
+ */
+package main;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+class ChangeFeed {
+
+    /**
+     * one published change
+     */
+    private static final class Change {
+        final long seq;
+        final int id;
+        final long cell;
+
+        Change(long seq, int id, long cell) {
+            this.seq = seq;
+            this.id = id;
+            this.cell = cell;
+        }
+    }
+
+    private final Inventory inventory;
+    private final AtomicReferenceArray<Change> ring;
+    private final AtomicLong next = new AtomicLong();
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    /**
+     * @param inventory where the cells are read
+     * @param capacity number of changes kept, a reader further behind has to read everything again
+     */
+    ChangeFeed(Inventory inventory, int capacity) {
+        this.inventory = inventory;
+        this.ring = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * publish that the resource id just changed
+     */
+    void publish(int id) {
+        long seq = next.getAndIncrement();
+        ring.set((int) (seq % ring.length()), new Change(seq, id, inventory.cell(id)));
+
+        if (waiters.get() > 0) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * the changes published from cursor on, waiting up to waitMillis when there is none yet
+     *
+     * @param cursor the first sequence number not read yet, negative for a new reader
+     * @return the changes, incomplete if the reader is new or fell behind the ring
+     */
+    Changes poll(long cursor, long waitMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+
+        while (true) {
+            long head = next.get();
+            if (cursor < 0 || cursor > head || head - cursor > ring.length()) {
+                return lost(head);
+            }
+
+            List<Resource> resources = new ArrayList<>();
+            List<Long> cells = new ArrayList<>();
+            long seq = cursor;
+            for (; seq < head; ++seq) {
+                Change change = ring.get((int) (seq % ring.length()));
+                if (change == null || change.seq < seq) break;  // taken but not written yet
+                if (change.seq > seq) return lost(head);        // overwritten
+
+                resources.add(inventory.resourceAt(change.id));
+                cells.add(change.cell);
+            }
+
+            if (!resources.isEmpty()) {
+                long[] raw = new long[cells.size()];
+                for (int i = 0; i < raw.length; ++i) raw[i] = cells.get(i);
+                return new Changes(seq, true, resources.toArray(new Resource[0]), raw);
+            }
+
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return new Changes(cursor, true, new Resource[0], new long[0]);
+            }
+
+            waiters.incrementAndGet();
+            try {
+                synchronized (this) {
+                    if (next.get() == head) {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    }
+                }
+            }
+            finally {
+                waiters.decrementAndGet();
+            }
+        }
+    }
+
+    private Changes lost(long head) {
+        return new Changes(head, false, new Resource[0], new long[0]);
+    }
+}
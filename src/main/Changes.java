@@ -0,0 +1,72 @@
+/**
+ * @author Lyes Djemaa
+ * @version 1.0
+ *
+ * A small class Changes
+ *
+ * the answer of a Machine to pollChanges : the resources that changed since the cursor of the caller
+ *  with their cell (available and reserved units @see Inventory), oldest first
+ *
+ *  - next : the cursor to give to the next poll
+ *  - complete : false if changes were missed (new reader, or it fell behind),
+ *               the caller must read the units again with quantities
+ *
+ * it is Externalizable like Directory, only names and numbers are written
+ */
+package main;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+public class Changes implements Externalizable {
+
+    private static final long serialVersionUID = 1L;
+
+    private long next;
+    private boolean complete;
+    private Resource[] resources;
+    private long[] cells;
+
+    public Changes(long next, boolean complete, Resource[] resources, long[] cells) {
+        this.next = next;
+        this.complete = complete;
+        this.resources = resources;
+        this.cells = cells;
+    }
+
+    /**
+     * Only used by the deserialization
+     */
+    public Changes() {}
+
+    //getters
+    public long getNext() { return this.next; }
+    public boolean isComplete() { return this.complete; }
+    public Resource[] getResources() { return this.resources; }
+    public long[] getCells() { return this.cells; }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeLong(this.next);
+        out.writeBoolean(this.complete);
+        out.writeInt(this.resources.length);
+        for (int i = 0; i < this.resources.length; ++i) {
+            out.writeUTF(this.resources[i].toString());
+            out.writeLong(this.cells[i]);
+        }
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        this.next = in.readLong();
+        this.complete = in.readBoolean();
+        this.resources = new Resource[in.readInt()];
+        this.cells = new long[this.resources.length];
+        for (int i = 0; i < this.resources.length; ++i) {
+            this.resources[i] = new Resource(in.readUTF());
+            this.cells[i] = in.readLong();
+        }
+    }
+}
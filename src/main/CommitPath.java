@@ -0,0 +1,18 @@
+/**
+ * @author Lyes Djemaa
+ * @version 1.0
+ *
+ * The enum CommitPath
+ *
+ * It tells how an Executor commits a reaction, chosen once per reaction from the machines storing its inputs
+ *  @see Executor#attemptReaction
+ *
+ *  - PRODUCE_ONLY : nothing to consume (no input, or 0 units of each), the outputs are produced at once
+ *  - ONE_PHASE : every input lives on one machine, a single commitOnePhase consumes them @see Machine#commitOnePhase
+ *  - TWO_PHASE : the inputs are spread over several machines, the full 2PC (parallel or ordered) is needed
+ */
+package main;
+
+public enum CommitPath {
+    PRODUCE_ONLY, ONE_PHASE, TWO_PHASE;
+}
@@ -0,0 +1,471 @@
+/**
+ * @author Lyes Djemaa
+ * @version 1.0
+ *
+ * The class DecisionLog
+ *
+ * It keeps the decisions of an Executor (the coordinator of the 2PC) on the disk, so that a crash between
+ *  the COMMIT sent to some machines and the end of the production does not lose the reaction @see Executor#recover
+ *
+ * <p>
+ * The log is one file of records := [int length][int crc32][byte type][long tx][payload]
+ *  - BEGIN : before Phase I, with the units to consume and to produce
+ *  - COMMIT : before the decision is sent to any machine, the only record waited for
+ *  - PRODUCED : one output of a committed transaction was produced (its index among the outputs)
+ *  - DONE : every participant applied the decision, the transaction is forgotten
+ *  - STARTED : the prefix of the ids of a run of the executor (port, incarnation), the next run takes
+ *              the following incarnation @see Executor#idPrefix
+ *  no record for an abort : a transaction begun but not committed is aborted (presumed abort)
+ *
+ * Group commit : the records are appended to a buffer in memory, a flusher thread writes the buffer
+ *  and forces the file over and over, one force making durable all the records appended meanwhile
+ *
+ * Compaction : the transactions not DONE yet (in doubt) are kept in memory, once the file is above
+ *  compactBytes it is rewritten with their records only, so its size stays bounded whatever the attempt rate
+ * </p>
+ */
+package main;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.*;
+import java.util.zip.CRC32;
+
+public class DecisionLog implements Closeable {
+
+    //types of record
+    static final byte BEGIN = 0;
+    static final byte COMMIT = 1;
+    static final byte PRODUCED = 2;
+    static final byte DONE = 3;
+    static final byte STARTED = 4;
+
+    public static final long DEFAULT_COMPACT_BYTES = 4 << 20;
+
+    /**
+     * a transaction begun and not DONE yet
+     *  - consume, produce : its units, the outputs in the order of their index
+     *  - committed : the COMMIT record was appended
+     *  - produced : the indexes of the outputs produced, guarded by the monitor of the transaction
+     */
+    public static final class InDoubt {
+        final long tx;
+        final Map<Resource, Integer> consume;
+        final Map<Resource, Integer> produce;
+        volatile boolean committed = false;
+        final BitSet produced = new BitSet();
+
+        InDoubt(long tx, Map<Resource, Integer> consume, Map<Resource, Integer> produce) {
+            this.tx = tx;
+            this.consume = consume;
+            this.produce = produce;
+        }
+
+        @Override
+        public String toString() {
+            return Executor.txName(tx) + (committed ? " committed " : " begun ") + consume + " -> " + produce;
+        }
+    }
+
+    private final Path file;
+    private final long compactBytes;
+    private static final Logger logger = Logger.getLogger(DecisionLog.class.getName());
+
+    /**
+     *  - live : the transactions in doubt right now, what a compaction writes
+     *  - recovered : the ones found in doubt when the log was opened
+     */
+    private final Map<Long, InDoubt> live = new ConcurrentHashMap<>();
+    private final Map<Long, InDoubt> recovered = new LinkedHashMap<>();
+
+    /**
+     * guarded by the monitor of the log
+     *  - pending : the records appended and not written yet
+     *  - appended, flushed : numbers of records appended, and made durable
+     *  - started : the prefix of the ids of the last run, 0 if no run was logged
+     */
+    private FileChannel channel;
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long appended = 0;
+    private long flushed = 0;
+    private long started = 0;
+    private boolean closed = false;
+
+    /**
+     * size of the file after the last compaction, it is not compacted again before it doubled
+     *  (many transactions in doubt would otherwise compact it at every force)
+     */
+    private long compactedSize = 0;
+
+    private final AtomicLong forces = new AtomicLong();
+    private final AtomicLong compactions = new AtomicLong();
+    private final Thread flusher;
+
+    /**
+     * open the log (created if needed), read the transactions in doubt, then start the flusher
+     *
+     * @param file the file of the log
+     * @param compactBytes the size above which the file is compacted
+     * @throws IOException if the file can't be read or opened
+     */
+    public DecisionLog(Path file, long compactBytes) throws IOException {
+        this.file = file;
+        this.compactBytes = compactBytes;
+
+        if (Files.exists(file)) {
+            replay();
+        }
+        this.recovered.putAll(this.live);
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                        StandardOpenOption.APPEND);
+
+        this.flusher = new Thread(this::flushLoop, "decision-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    //getters
+    public Map<Long, InDoubt> getRecovered() { return this.recovered; }
+    public synchronized long getStarted() { return this.started; }
+    public int getInDoubt() { return this.live.size(); }
+    public long getForces() { return this.forces.get(); }
+    public long getCompactions() { return this.compactions.get(); }
+    public synchronized long getAppended() { return this.appended; }
+
+    /**
+     * read the records up to the first torn one, the file is cut there
+     */
+    private void replay() throws IOException {
+        byte[] content = Files.readAllBytes(file);
+        ByteBuffer in = ByteBuffer.wrap(content);
+        int valid = 0;
+
+        while (in.remaining() >= 8) {
+            int length = in.getInt(valid);
+            if (length < 9 || valid + 8 + length > content.length) break;
+
+            CRC32 crc = new CRC32();
+            crc.update(content, valid + 8, length);
+            if ((int) crc.getValue() != in.getInt(valid + 4)) break;
+
+            apply(new DataInputStream(new ByteArrayInputStream(content, valid + 8, length)));
+            valid += 8 + length;
+            in.position(valid);
+        }
+
+        if (valid < content.length) {
+            logger.warning("Decision log " + file + " cut after " + valid + " bytes, the rest was torn");
+            try (FileChannel cut = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                cut.truncate(valid);
+                cut.force(true);
+            }
+        }
+    }
+
+    private void apply(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        long tx = in.readLong();
+        InDoubt t = live.get(tx);
+
+        switch (type) {
+            case BEGIN:
+                live.put(tx, new InDoubt(tx, readUnits(in), readUnits(in)));
+                break;
+            case COMMIT:
+                if (t != null) t.committed = true;
+                break;
+            case PRODUCED:
+                int output = in.readInt();
+                if (t != null) t.produced.set(output);
+                break;
+            case DONE:
+                live.remove(tx);
+                break;
+            case STARTED:
+                started = tx;
+                break;
+            default:
+                throw new IOException("Unknown record type " + type);
+        }
+    }
+
+    private static Map<Resource, Integer> readUnits(DataInputStream in) throws IOException {
+        Map<Resource, Integer> units = new LinkedHashMap<>();
+        int count = in.readShort();
+        for (int i = 0; i < count; ++i) {
+            units.put(new Resource(in.readUTF()), in.readInt());
+        }
+        return units;
+    }
+
+    private static void writeUnits(DataOutputStream out, Map<Resource, Integer> units) throws IOException {
+        out.writeShort(units.size());
+        for (Map.Entry<Resource, Integer> e : units.entrySet()) {
+            out.writeUTF(e.getKey().toString());
+            out.writeInt(e.getValue());
+        }
+    }
+
+    /**
+     * Phase I begins, the machines may hold reservations of tx from now on
+     *  not waited for : if it is lost, the leases of the machines give the units back
+     */
+    public void begin(long tx, ReactionRule rl) {
+        InDoubt t = new InDoubt(tx, new LinkedHashMap<>(rl.getToConsume()), new LinkedHashMap<>(rl.getToProduce()));
+        synchronized (this) {
+            live.put(tx, t);
+            append(record(BEGIN, tx, out -> {
+                writeUnits(out, t.consume);
+                writeUnits(out, t.produce);
+            }));
+        }
+    }
+
+    /**
+     * a run of the executor starts, its ids begin with prefix, returns once it is on the disk
+     *  so that the next run, even after a crash before any transaction, takes another incarnation
+     *
+     * @throws IllegalStateException if the log failed before the record was forced
+     */
+    public void start(long prefix) {
+        long position;
+        synchronized (this) {
+            started = prefix;
+            position = append(record(STARTED, prefix, out -> {}));
+        }
+        await(position, "the start of " + Executor.txName(prefix));
+    }
+
+    /**
+     * the decision is COMMIT, returns once it is on the disk : only then may it be sent to the machines
+     *  the wait can't be interrupted, a commit on the disk must not be followed by an abort
+     *
+     * @throws IllegalStateException if the log failed before the record was forced
+     */
+    public void commit(long tx) {
+        long position;
+        synchronized (this) {
+            InDoubt t = live.get(tx);
+            if (t != null) t.committed = true;
+            position = append(record(COMMIT, tx, out -> {}));
+        }
+        await(position, "the commit of " + Executor.txName(tx));
+    }
+
+    /**
+     * wait until the record at position is forced, without being interrupted
+     * @throws IllegalStateException if the log failed before, what names the record
+     */
+    private void await(long position, String what) {
+        boolean interrupted = false;
+        synchronized (this) {
+            while (flushed < position && !closed) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (flushed < position) {
+                throw new IllegalStateException("Decision log closed before " + what);
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * the output of index output was produced, nothing is logged for a transaction never begun (produce-only)
+     */
+    public void produced(long tx, int output) {
+        synchronized (this) {
+            InDoubt t = live.get(tx);
+            if (t == null) return;
+            synchronized (t) { t.produced.set(output); }
+            append(record(PRODUCED, tx, out -> out.writeInt(output)));
+        }
+    }
+
+    /**
+     * every participant applied the decision, nothing is left to do for tx
+     */
+    public void done(long tx) {
+        synchronized (this) {
+            if (live.remove(tx) != null) {
+                append(record(DONE, tx, out -> {}));
+            }
+        }
+    }
+
+    interface Payload { void write(DataOutputStream out) throws IOException; }
+
+    private static byte[] record(byte type, long tx, Payload payload) {
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream(32);
+            DataOutputStream out = new DataOutputStream(body);
+            out.writeByte(type);
+            out.writeLong(tx);
+            payload.write(out);
+            out.flush();
+
+            byte[] bytes = body.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            ByteBuffer record = ByteBuffer.allocate(8 + bytes.length);
+            record.putInt(bytes.length).putInt((int) crc.getValue()).put(bytes);
+            return record.array();
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Could not encode a record", e);
+        }
+    }
+
+    /**
+     * @return the number of records once this one is appended, to wait for @see await
+     */
+    private long append(byte[] record) {
+        if (closed) throw new IllegalStateException("Decision log closed");
+        pending.write(record, 0, record.length);
+        notifyAll();
+        return ++appended;
+    }
+
+    /**
+     * the loop of the flusher : write and force what was appended since the last force, then wake the callers
+     *  the file is compacted once it grew above compactBytes
+     */
+    private void flushLoop() {
+        while (true) {
+            byte[] batch;
+            long target;
+            synchronized (this) {
+                while (pending.size() == 0 && !closed) {
+                    try {
+                        wait();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.size() == 0) return;
+                batch = pending.toByteArray();
+                pending.reset();
+                target = appended;
+            }
+
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(batch);
+                while (buffer.hasRemaining()) channel.write(buffer);
+                channel.force(false);
+                forces.incrementAndGet();
+
+                synchronized (this) {
+                    flushed = Math.max(flushed, target);
+                    if (channel.size() > Math.max(compactBytes, 2 * compactedSize)) {
+                        compact();
+                    }
+                    notifyAll();
+                }
+            }
+            catch (IOException e) {
+                System.err.println("Decision log " + file + " could not be written : " + e);
+                synchronized (this) {
+                    closed = true;
+                    notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * rewrite the file with the transactions in doubt only, called with the monitor held
+     *  the records still pending are part of them, so they are durable once it is done
+     */
+    private void compact() throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".compact");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+            byte[] mark = record(STARTED, started, o -> {});
+            snapshot.write(mark, 0, mark.length);
+
+            for (InDoubt t : live.values()) {
+                byte[] begin = record(BEGIN, t.tx, o -> {
+                    writeUnits(o, t.consume);
+                    writeUnits(o, t.produce);
+                });
+                snapshot.write(begin, 0, begin.length);
+                if (t.committed) {
+                    byte[] commit = record(COMMIT, t.tx, o -> {});
+                    snapshot.write(commit, 0, commit.length);
+                }
+                synchronized (t) {
+                    for (int i = t.produced.nextSetBit(0); i >= 0; i = t.produced.nextSetBit(i + 1)) {
+                        final int output = i;
+                        byte[] produced = record(PRODUCED, t.tx, o -> o.writeInt(output));
+                        snapshot.write(produced, 0, produced.length);
+                    }
+                }
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(snapshot.toByteArray());
+            while (buffer.hasRemaining()) out.write(buffer);
+            out.force(true);
+        }
+
+        channel.close();
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        compactedSize = channel.size();
+
+        pending.reset();
+        flushed = appended;
+        compactions.incrementAndGet();
+    }
+
+    /**
+     * @return the metrics of the log (e.g. "3 in doubt, 5200 records, 310 forces, 2 compactions")
+     */
+    public String report() {
+        return String.format("%d in doubt, %d records, %d forces, %d compactions",
+                             getInDoubt(), getAppended(), getForces(), getCompactions());
+    }
+
+    /**
+     * write and force what is left, then stop the flusher
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+            channel.close();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (IOException e) {
+            System.err.println("Decision log " + file + " could not be closed : " + e);
+        }
+    }
+}
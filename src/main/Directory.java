@@ -0,0 +1,55 @@
+/**
+ * @author Lyes Djemaa
+ * @version 1.0
+ * 
+ * A small class Directory
+ * 
+ * the answer of a Machine to enumResource : the resources it stores
+ *  it is Externalizable so only the names are written, one after the other,
+ *  and the executor gets its Resource objects back without parsing a string
+ */
+package main;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Arrays;
+
+public class Directory implements Externalizable {
+
+    private static final long serialVersionUID = 1L;
+
+    private Resource[] resources;
+
+    public Directory(Resource[] resources) {
+        this.resources = resources;
+    }
+
+    /**
+     * Only used by the deserialization
+     */
+    public Directory() {}
+
+    //getters
+    public Resource[] getResources() { return this.resources; }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeInt(this.resources.length);
+        for (Resource R : this.resources) {
+            out.writeUTF(R.toString());
+        }
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        this.resources = new Resource[in.readInt()];
+        for (int i = 0; i < this.resources.length; ++i) {
+            this.resources[i] = new Resource(in.readUTF());
+        }
+    }
+
+    @Override
+    public String toString() { return Arrays.toString(this.resources); }
+}
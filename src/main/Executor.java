@@ -29,20 +29,37 @@
 
 package main;
 
+import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Random;
 import java.net.*;
 import java.io.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.lang.reflect.Method;
 import java.util.logging.*;
+import java.nio.file.Paths;
+import java.lang.management.ManagementFactory;
+import javax.management.ObjectName;
 
-public class Executor {
+public class Executor implements ExecutorMXBean {
     
     /** Attribute map<Resource, MachineService> to locate the machine containing the resource 
      *      We assume every machines are already connected and accessible, no other we be added to the network
@@ -50,33 +67,187 @@ public class Executor {
      * 
      *  Attribute ReactionRule[] that store reactions it will attempt to launch
      * 
-     *  Attribute Random to randomly select a Reaction to launch, seed based on currentTime "good" to provide randomness
+     *  Attribute port, the --portSocket given in argument, it identifies the executor (logs, log file)
+     *      SlaveConsumers run in the same JVM and talk to the executor through an ExecutorSlaveLink, no socket is opened
      * 
-     *  Attribute ServerSocket to communicate with SlaveConsumers to perfom 2PC
+     *  Attribute participants, the engine running SlaveConsumers and SlaveProducers (virtual threads or a bounded pool)
+     *      the SlaveProducers send the batches of the production, at most one per machine at a time, they take no slot
      * 
+     *  Attribute transactions, counter giving each attempt its own transaction id @see nextTransaction
+     *
+     *  Attribute incarnation, tells the runs of the executor on the same port apart, in its ids @see idPrefix
+     *      the one after the last run of the decision log, at random without decision log
+     * 
+     *  Attributes totalAttempts, successfulAttempts, shared by all the workers
+     *
+     *  Attribute lateCommits, the transactions a machine refused to commit, their lease had expired or it had no trace
+     *      of them @see lateCommit
+     * 
+     *  Attribute participantSlots, caps the number of participants in flight
+     *      a SlaveConsumer waits for the decision of its executor, so all the consumers of one attempt take their slots at once
+     * 
+     *  Attribute locationById, the machine storing each resource indexed by resource id @see ResourceRegistry
+     *      resolved once from locations so the attempts don't hash resources
+     *
+     *  Attribute consumeGroups, the left-hand side of each reaction split by machine, computed once @see groupByMachine
+     *      the inputs of 0 units are left out, there is nothing to reserve for them
+     *
+     *  Attribute commitPaths, how each reaction is committed, chosen once from consumeGroups @see CommitPath
+     *
+     *  Attribute commitOutputs, the right-hand side of each reaction stored on the machines of its left-hand side,
+     *      by machine : these outputs are added by the commit of the machine (commitAndProduce, commitOnePhase)
+     *      instead of the production pipeline, the others are queued in it @see produceOutputs
+     *
+     *  Attribute cache, what the executor knows of the units of each resource @see AvailabilityCache
+     *      null when --cacheStaleness is 0, then every reaction selected is attempted
+     *
+     *  Attribute ordered, with --acquire ordered the inputs of a reaction are reserved one at a time,
+     *      in the order of their names (orderedInputs), waiting on the ones held by other transactions @see attemptOrdered
+     *
+     *  Attribute policy, chooses among the reactions that may be attempted and keeps their stats @see SelectionPolicy
+     *
+     *  Attribute decisionLog, the begin and commit of each transaction kept on the disk, so that a transaction
+     *      committed before a crash is finished after the restart @see DecisionLog @see recover, null without --decisionLog
+     *
+     *  Attribute production, queues the outputs of the committed reactions and sends them to each machine
+     *      by batches @see ProductionPipeline
+     *
+     *  Attributes phaseOne, phaseTwo, endToEnd, the latencies of the attempts shown through JMX @see ExecutorMXBean
+     *
      *  Attribute Logger
      *  
      *  Attribute ipAddress 
      * */
     private Map<Resource, MachineService> locations = new ConcurrentHashMap<>();
+    private final MachineService[] locationById;
+    private final Map<ReactionRule, Map<MachineService, Map<Resource, Integer>>> consumeGroups = new IdentityHashMap<>();
+    private final Map<ReactionRule, CommitPath> commitPaths = new IdentityHashMap<>();
+    private final Map<ReactionRule, Map<MachineService, Map<Resource, Integer>>> commitOutputs = new IdentityHashMap<>();
     private ReactionRule[] reactions;
-    private Random rng = new Random(System.currentTimeMillis());
-    private ServerSocket server;
     private final int port;
     private static final Logger logger = Logger.getLogger(Executor.class.getName());
     private final String ipAddress;
+    private final ExecutorService participants;
+    private final Semaphore participantSlots;
+    private final int maxParticipants;
+    private final AtomicInteger transactions = new AtomicInteger();
+    private final int incarnation;
+    private final AtomicInteger totalAttempts = new AtomicInteger();
+    private final AtomicInteger successfulAttempts = new AtomicInteger();
+    private final AtomicLong lateCommits = new AtomicLong();
+    private final AvailabilityCache cache;
+    private final SelectionPolicy policy;
+    private final boolean ordered;
+    private final Map<ReactionRule, Resource[]> orderedInputs = new IdentityHashMap<>();
+    private final DecisionLog decisionLog;
+    private final ProductionPipeline production;
+    private final LatencyHistogram phaseOne = new LatencyHistogram();
+    private final LatencyHistogram phaseTwo = new LatencyHistogram();
+    private final LatencyHistogram endToEnd = new LatencyHistogram();
+
+    /** 
+     * default values of the engine when --engine, --poolSize or --maxParticipants are not given
+     */
+    public static final String DEFAULT_ENGINE = "virtual";
+    public static final int DEFAULT_POOL_SIZE = 64;
+    public static final int DEFAULT_MAX_PARTICIPANTS = 1024;
+    public static final long DEFAULT_CACHE_STALENESS = 1000;
+    public static final String DEFAULT_POLICY = "uniform";
+    public static final double DEFAULT_EPSILON = 0.1;
 
+    /**
+     * how long (ms) an ordered acquisition waits for units held by other transactions before giving up
+     *  far below the lease of the machines, so the reservations already made are still there
+     */
+    public static final long ORDERED_WAIT_MILLIS = 2000;
 
+    /**
+     * the bit set in the ids of the batches sent by recover, above the incarnation
+     *  the id of such a batch is the one of its transaction with this bit, so it does not follow the order
+     *  of the batches of its sender : a machine remembers it on its own @see Machine#batchKey
+     */
+    public static final long RECOVERY_BATCH = 1L << 47;
+
+
+    /**
+     * an executor with every knob at its default, its slaves run on a pool of DEFAULT_POOL_SIZE threads
+     */
     public Executor(Map<Resource, MachineService> locations, ReactionRule[] reactions, int port) {
+        this(locations, reactions, port, newEngine("pool", DEFAULT_POOL_SIZE), DEFAULT_POOL_SIZE, DEFAULT_CACHE_STALENESS,
+             SelectionPolicy.of(DEFAULT_POLICY, reactions, DEFAULT_EPSILON, new Random(System.currentTimeMillis())),
+             false, null, ProductionPipeline.DEFAULT_BATCH_SIZE, ProductionPipeline.DEFAULT_LINGER_MILLIS);
+    }
+
+    /**
+     * @param participants the engine on which slaves are run @see newEngine
+     * @param maxParticipants maximum number of slaves in flight, must allow the widest reaction to run
+     * @param cacheStaleness how long (ms) the units read from a machine are trusted, 0 disables the cache @see AvailabilityCache
+     * @param policy chooses the reaction to attempt among the ones the cache allows @see SelectionPolicy
+     * @param ordered true to reserve the inputs one at a time in the order of their names @see attemptOrdered
+     * @param decisionLog the log of the decisions of this executor, null to keep them in memory only @see recover
+     * @param produceBatch number of outputs for one machine sent at once @see ProductionPipeline
+     * @param produceLinger longest wait (ms) of an output before it is sent, 0 to send each one at once
+     * @throws IllegalArgumentException if a reaction needs more consumers than maxParticipants,
+     *                                  or uses a resource no machine stores
+     */
+    public Executor(Map<Resource, MachineService> locations, ReactionRule[] reactions, int port,
+                    ExecutorService participants, int maxParticipants, long cacheStaleness, SelectionPolicy policy,
+                    boolean ordered, DecisionLog decisionLog, int produceBatch, long produceLinger) {
+        if (port < 0 || port > 0xffff) throw new IllegalArgumentException("The port must be between 0 and 65535");
         this.port = port;
+        this.decisionLog = decisionLog;
+        if (decisionLog == null) {
+            this.incarnation = new Random().nextInt(1 << 15);
+        }
+        else {
+            long last = decisionLog.getStarted();
+            this.incarnation = (last != 0 && (last >>> 48) == port) ? (int) ((last >>> 32) + 1) & 0x7fff
+                                                                      : new Random().nextInt(1 << 15);
+            decisionLog.start(idPrefix(port, this.incarnation));
+        }
+        this.policy = policy;
+        this.ordered = ordered;
         this.locations = locations;
         this.reactions = reactions;
-        try {
-            this.server = new ServerSocket(port);
-            
-        } 
-        catch(IOException e){
-            System.err.print("Error constructor Executor" + e);
+        this.participants = participants;
+        this.maxParticipants = maxParticipants;
+        this.participantSlots = new Semaphore(maxParticipants, true);
+        this.production = new ProductionPipeline(port, this.incarnation, produceBatch, produceLinger, participants);
+
+        this.locationById = new MachineService[ResourceRegistry.size()];
+        for (Map.Entry<Resource, MachineService> e : locations.entrySet()) {
+            this.locationById[e.getKey().getId()] = e.getValue();
+        }
+        this.cache = (cacheStaleness > 0) ? new AvailabilityCache(this.locationById.length, cacheStaleness) : null;
+
+        for (ReactionRule rl : reactions) {
+            // found now rather than once the reaction is committed, its outputs could not be produced
+            for (Map<Resource, Integer> side : List.of(rl.getToConsume(), rl.getToProduce())) {
+                for (Resource R : side.keySet()) {
+                    if (locate(R) == null) throw new IllegalArgumentException("Reaction " + rl + " : no machine stores " + R);
+                }
+            }
+            Map<MachineService, Map<Resource, Integer>> byMachine = groupByMachine(needed(rl.getToConsume()));
+            if (byMachine.size() > maxParticipants) {
+                throw new IllegalArgumentException("Reaction " + rl + " needs more participants than --maxParticipants " + maxParticipants);
+            }
+            this.consumeGroups.put(rl, byMachine);
+
+            Map<MachineService, Map<Resource, Integer>> outputs = new HashMap<>();
+            for (Map.Entry<MachineService, Map<Resource, Integer>> e : groupByMachine(rl.getToProduce()).entrySet()) {
+                if (byMachine.containsKey(e.getKey())) outputs.put(e.getKey(), e.getValue());
+            }
+            this.commitOutputs.put(rl, outputs);
+
+            // the ordered acquisition waits for locked units, a one-phase commit would not
+            CommitPath path = byMachine.isEmpty() ? CommitPath.PRODUCE_ONLY
+                              : (byMachine.size() == 1 && !ordered) ? CommitPath.ONE_PHASE
+                              : CommitPath.TWO_PHASE;
+            this.commitPaths.put(rl, path);
+
+            Resource[] inputs = rl.getToConsume().keySet().toArray(new Resource[0]);
+            Arrays.sort(inputs, Comparator.comparing(Resource::toString));
+            this.orderedInputs.put(rl, inputs);
         }
         String tmp;
         try {
@@ -92,103 +263,909 @@ public class Executor {
     //getters
     public Map<Resource, MachineService> getLocations() { return this.locations; }
     public ReactionRule[] getReactions() { return this.reactions; }
+    public int getMaxParticipants() { return this.maxParticipants; }
+    public SelectionPolicy getPolicy() { return this.policy; }
+    public ProductionPipeline getProduction() { return this.production; }
+    public int getIncarnation() { return this.incarnation; }
+
+    //metrics shown through JMX @see ExecutorMXBean
+    @Override
+    public long getAttempts() { return this.totalAttempts.get(); }
+    @Override
+    public long getCommits() { return this.successfulAttempts.get(); }
+    @Override
+    public long getLateCommits() { return this.lateCommits.get(); }
+    @Override
+    public LatencyHistogram.Snapshot getPhaseOne() { return this.phaseOne.snapshot(); }
+    @Override
+    public LatencyHistogram.Snapshot getPhaseTwo() { return this.phaseTwo.snapshot(); }
+    @Override
+    public LatencyHistogram.Snapshot getEndToEnd() { return this.endToEnd.snapshot(); }
+    @Override
+    public String getProductionMetrics() { return this.production.report(); }
+    @Override
+    public String getDecisionLogMetrics() { return (this.decisionLog == null) ? "off" : this.decisionLog.report(); }
+
+    @Override
+    public void resetLatencies() {
+        this.phaseOne.reset();
+        this.phaseTwo.reset();
+        this.endToEnd.reset();
+    }
+
+    @Override
+    public Map<String, Long> getAborts() {
+        Map<String, Long> aborts = new LinkedHashMap<>();
+        for (AttemptResult reason : AttemptResult.values()) {
+            if (reason == AttemptResult.COMMITTED) continue;
+            long count = 0;
+            for (RuleStats s : this.policy.getStats().values()) {
+                count += s.getCount(reason);
+            }
+            aborts.put(reason.name(), count);
+        }
+        return aborts;
+    }
+
+    @Override
+    public Map<String, RuleStats> getRules() {
+        Map<String, RuleStats> rules = new LinkedHashMap<>();
+        for (ReactionRule rl : this.reactions) {
+            rules.putIfAbsent(rl.toString(), this.policy.getStats().get(rl));
+        }
+        return rules;
+    }
+
+    /**
+     * @return how rl is committed, TWO_PHASE for a reaction unknown to this executor
+     */
+    public CommitPath getCommitPath(ReactionRule rl) {
+        return this.commitPaths.getOrDefault(rl, CommitPath.TWO_PHASE);
+    }
+
+    /**
+     * static method building the engine running the slaves
+     *  "virtual" : one virtual thread per slave (Java 21+)
+     *  "pool" : a fixed pool of poolSize platform threads
+     *
+     * @param kind "virtual" or "pool"
+     * @param poolSize number of threads of the pool
+     * @return the engine
+     * @throws IllegalArgumentException
+     */
+    public static ExecutorService newEngine(String kind, int poolSize) {
+        if ("virtual".equals(kind)) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            }
+            catch (ReflectiveOperationException | UnsupportedOperationException e) {
+                throw new IllegalArgumentException("No virtual threads on this JVM, use --engine pool");
+            }
+        }
+        else if (!"pool".equals(kind)) {
+            throw new IllegalArgumentException("Unknown engine : " + kind + " (expected: virtual or pool)");
+        }
+
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(poolSize, r -> {
+            Thread t = new Thread(r, "participant-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
 
+    /**
+     * give a new transaction id, unique among all executors and all their runs
+     *  the high 32 bits are the port and the incarnation of the executor @see idPrefix, the low ones a counter
+     *  a restarted executor counts from 1 again, its ids can't match the leases its previous run left on the machines
+     *
+     * @return the id of the transaction
+     */
+    public long nextTransaction() {
+        return idPrefix(this.port, this.incarnation) | (this.transactions.incrementAndGet() & 0xffffffffL);
+    }
+
+    /**
+     * @return the high 32 bits of the ids given by a run of an executor : its port (16 bits), then RECOVERY_BATCH
+     *         (0 here), then its incarnation (15 bits)
+     */
+    public static long idPrefix(int port, int incarnation) {
+        return ((long) port << 48) | ((long) (incarnation & 0x7fff) << 32);
+    }
 
     /**
-     * select randomly a reaction present in the array
+     * @param tx a transaction id given by nextTransaction
+     * @return a readable form of the id (e.g. "tx5001.7#12" : port 5001, incarnation 7, 12th transaction)
+     */
+    public static String txName(long tx) {
+        return "tx" + (tx >>> 48) + "." + ((tx >>> 32) & 0xffff) + "#" + (tx & 0xffffffffL);
+    }
+
+    /**
+     * run a slave on the engine, its slot is given back when it ends
+     *  the slot must have been taken by the caller
+     *
+     * @param slave the SlaveConsumer to run
+     */
+    private void startParticipant(Runnable slave) {
+        this.participants.execute(() -> {
+            try {
+                slave.run();
+            }
+            finally {
+                this.participantSlots.release();
+            }
+        });
+    }
+
+
+    /**
+     * select a reaction present in the array, the policy chooses among the candidates @see SelectionPolicy
+     *  with the cache, the reactions it knows to be short of units are skipped,
+     *  and the ones whose units are held by other transactions only come after the others
+     *  the reactions parked by the pacing are skipped too
      * 
-     * @return the reaction rule selected 
+     * @param pacing the pacing of the workers @see Pacing
+     * @return the reaction rule selected, null if the cache says none of them can succeed
      * 
      */
-    public ReactionRule selectReaction() {
-        
-        int i = this.rng.nextInt(this.reactions.length); //pick a number between 0-N where N denotes number of reactions  
+    public ReactionRule selectReaction(Pacing pacing) {
+        long now = System.nanoTime();
+
+        if (this.cache == null) {
+            List<ReactionRule> candidates = new ArrayList<>(this.reactions.length);
+            for (ReactionRule rl : this.reactions) {
+                if (!pacing.isParked(rl, now)) candidates.add(rl);
+            }
+            return candidates.isEmpty() ? null : this.policy.select(candidates);
+        }
+
+        refreshCache();
+
+        now = System.nanoTime();
+        List<ReactionRule> free = new ArrayList<>();
+        List<ReactionRule> locked = new ArrayList<>();
+        for (ReactionRule rl : this.reactions) {
+            if (pacing.isParked(rl, now)) continue;
+
+            boolean doomed = false;
+            boolean held = false;
+            for (Map.Entry<Resource, Integer> e : rl.getToConsume().entrySet()) {
+                long cell = this.cache.fresh(e.getKey(), now);
+                if (cell == AvailabilityCache.UNKNOWN) continue;
+
+                int available = Inventory.available(cell);
+                if (available + Inventory.reserved(cell) < e.getValue()) doomed = true;
+                else if (available < e.getValue()) held = true;
+            }
+            if (doomed) continue;
+            if (held) locked.add(rl);
+            else free.add(rl);
+        }
+
+        List<ReactionRule> candidates = free.isEmpty() ? locked : free;
+        if (candidates.isEmpty()) return null;
+        return this.policy.select(candidates);
+    }
+
+    /**
+     * read again, with one bulk query per machine, the resources consumed by the reactions whose entry is stale
+     *  a machine that can't be reached leaves its entries unknown, the attempt will tell
+     */
+    private void refreshCache() {
+        long now = System.nanoTime();
+        Map<MachineService, List<Resource>> stale = new LinkedHashMap<>();
+        for (ReactionRule rl : this.reactions) {
+            for (Resource R : rl.getToConsume().keySet()) {
+                MachineService stub = locate(R);
+                if (stub == null || this.cache.fresh(R, now) != AvailabilityCache.UNKNOWN) continue;
+
+                List<Resource> toRead = stale.computeIfAbsent(stub, k -> new ArrayList<>());
+                if (!toRead.contains(R)) toRead.add(R);
+            }
+        }
+
+        for (Map.Entry<MachineService, List<Resource>> entry : stale.entrySet()) {
+            Resource[] resources = entry.getValue().toArray(new Resource[0]);
+            try {
+                long[] cells = entry.getKey().quantities(resources);
+                long readAt = System.nanoTime();
+                for (int i = 0; i < resources.length; ++i) {
+                    if (cells[i] >= 0) this.cache.record(resources[i], cells[i], readAt);
+                }
+            }
+            catch (Exception e) {
+                logger.warning(() -> "[Exe@" + this.ipAddress + ":" + this.port 
+                                    + " Could not refresh " + Arrays.toString(resources) + " : " + e);
+            }
+        }
+    }
+
+    /**
+     * @return the machine storing R, null if no machine stores it
+     */
+    public MachineService locate(Resource R) {
+        int id = R.getId();
+        return (id < locationById.length) ? locationById[id] : null;
+    }
+
+    /**
+     * @return the inputs of side that have units to reserve, the ones of 0 units are left out
+     */
+    private static Map<Resource, Integer> needed(Map<Resource, Integer> side) {
+        Map<Resource, Integer> needed = new HashMap<>();
+        for (Map.Entry<Resource, Integer> e : side.entrySet()) {
+            if (e.getValue() > 0) needed.put(e.getKey(), e.getValue());
+        }
+        return needed;
+    }
+
+    /**
+     * split one side of a reaction according to the machine storing each resource
+     *  e.g. with A and B on Machine1 and C on Machine2, "A + B + C" gives {Machine1 : {A, B}; Machine2 : {C}}
+     *
+     * @param side resources and quantities of one side of a reaction
+     * @return for each machine involved, the part of the side it stores
+     */
+    public Map<MachineService, Map<Resource, Integer>> groupByMachine(Map<Resource, Integer> side) {
+        Map<MachineService, Map<Resource, Integer>> result = new LinkedHashMap<>();
 
-        return reactions[i];
+        for (Map.Entry<Resource, Integer> entry : side.entrySet()) {
+            MachineService stub = locate(entry.getKey());
+            result.computeIfAbsent(stub, k -> new HashMap<>())
+                  .put(entry.getKey(), entry.getValue());
+        }
+
+        return result;
     }
 
     /**
     * method that will try to launch a reaction by following protocol mentioned in header
      *
     * @param rl reaction rule we're gonna try to launch
-    * @return true if it could make it, false if it has to abort
+    * @return COMMITTED if it could make it, otherwise why it had to abort
     */
 
-    public boolean attemptReaction(ReactionRule rl) {
+    public AttemptResult attemptReaction(ReactionRule rl) {
+
+        switch (getCommitPath(rl)) {
+            case PRODUCE_ONLY:
+                return attemptProduceOnly(rl);
+            case ONE_PHASE:
+                return attemptOnePhase(rl);
+            default:
+        }
+        if (this.ordered) {
+            return attemptOrdered(rl);
+        }
 
         boolean attempt = true;
+        boolean committed = false;
+        AttemptResult outcome = AttemptResult.COMMITTED;
 
         List<ExecutorSlaveLink> links = new ArrayList<>();
+        List<MachineService> stubs = new ArrayList<>();
+        BlockingQueue<ExecutorSlaveLink> ballot = new LinkedBlockingQueue<>();
+
+        final long tx = nextTransaction();
+        final long begin = System.nanoTime();
 
         try {
 
-            logger.info(() ->"[Exe@" + this.ipAddress + ":" + this.port                                     
+            logger.info(() ->"[Exe@" + this.ipAddress + ":" + this.port + " " + txName(tx)
                                 + " Beginning phase I for " + rl);
-            //Creating one SlaveConsumer per resource to consume
-            for (Map.Entry<Resource, Integer> entry : rl.getToConsume().entrySet()) {
-                Resource resource = entry.getKey();
-                int qtyRequired = entry.getValue();
-                MachineService stub = locations.get(resource);
+            if (this.decisionLog != null) this.decisionLog.begin(tx, rl);
+            Map<MachineService, Map<Resource, Integer>> byMachine = consumeGroups.get(rl);
+            if (byMachine == null) byMachine = groupByMachine(rl.getToConsume());
 
-                // start slave thread
-                SlaveConsumer sl = new SlaveConsumer(resource, qtyRequired, stub, this.port);
-                new Thread(sl).start();
+            // all consumers must run together, a partial set would wait for the decision forever
+            this.participantSlots.acquire(byMachine.size());
 
-                // wait for its TCP connection
-                links.add(new ExecutorSlaveLink(this.server.accept()));
+            //Creating one SlaveConsumer per machine holding resources to consume
+            for (Map.Entry<MachineService, Map<Resource, Integer>> entry : byMachine.entrySet()) {
+                MachineService stub = entry.getKey();
+                Map<Resource, Integer> demand = entry.getValue();
+
+                // start slave thread with its own link, it adds the outputs of its machine with the commit
+                ExecutorSlaveLink link = new ExecutorSlaveLink(ballot);
+                SlaveConsumer sl = new SlaveConsumer(tx, demand, outputsOn(rl, stub), stub, link, this.cache);
+                startParticipant(sl);
+
+                links.add(link);
+                stubs.add(stub);
             }
 
 
-//getting response from slaves 
-            for (ExecutorSlaveLink link : links) {
-                String ready = (String) link.in.readObject();
+//getting response from slaves in the order they arrive, the first "NO" is enough to abort
+            for (int votes = 0; votes < links.size(); ++votes) {
+                ExecutorSlaveLink voter = ballot.take();
+                String ready = voter.vote.join();
                 logger.fine(() -> "Slave response : " + ready);
                 if ("NO".equals(ready)) {
                     attempt = false;
+                    outcome = AttemptResult.refused(voter.status);
+                    break;
+                }
+            }
+
+            final long decided = System.nanoTime();
+            this.phaseOne.record(decided - begin);
+            logger.info(() -> "[Exe@" + this.ipAddress + ":" + this.port + " " + txName(tx)
+                                 + " Ending phase I for " + rl);
+
+            logger.info(() -> "[Exe@" + this.ipAddress + ":" +this.port + " " + txName(tx)
+                                +" Beginning phase II for " + rl);
+//deciding if we commit or abort
+            String decision = attempt ? "COMMIT" : "ABORT";
+            if (attempt && this.decisionLog != null) {
+                // no machine may hear of the commit before it survives a crash of the executor
+                this.decisionLog.commit(tx);
+            }
+            committed = attempt;
+
+            for (ExecutorSlaveLink link : links) {
+                link.decision.complete(decision);
+            }
+
+            List<CompletableFuture<Boolean>> parts = new ArrayList<>();
+            for (int i = 0; i < links.size(); ++i) {
+                ExecutorSlaveLink link = links.get(i);
+                MachineService stub = stubs.get(i);
+                if (attempt) link.applied.thenAccept(ok -> { if (ok) producedWithCommit(tx, rl, stub); });
+                parts.add(link.applied);
+            }
+            CompletableFuture<Void> applied = CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0]));
+            applied.thenRun(() -> this.phaseTwo.record(System.nanoTime() - decided));
+//If commit, trigger production on the right-hand side stored on the other machines, once none refused the commit
+            if (attempt == true) {
+                applied.thenRun(() -> produceOnceApplied(tx, rl, links));
+            }
+            else {
+                settle(tx, parts);
+            }
+            logger.info(() -> "[Exe@" + this.ipAddress + ":" + this.port + " " + txName(tx)
+                                +" Ending phase II for " + rl);
+
+        } 
+        catch (Exception e) {
+            System.err.println("Error during attemptReaction: " + e);
+            e.printStackTrace();
+            outcome = AttemptResult.FAILED;
+            // release the slaves still waiting for a decision
+            for (ExecutorSlaveLink link : links) {
+                link.decision.complete("ABORT");
+            }
+            if (committed) {
+                logger.warning(() -> "[Exe@" + this.ipAddress + ":" + this.port + " " + txName(tx)
+                                    + " committed but not finished, left to the recovery");
+            }
+            else {
+                List<CompletableFuture<Boolean>> parts = new ArrayList<>();
+                for (ExecutorSlaveLink link : links) {
+                    parts.add(link.applied);
+                }
+                settle(tx, parts);
+            }
+        }
+
+        return outcome;
+    }
+
+    /**
+     * the Phase II of the parallel 2PC is over : produce the outputs of rl stored on the other machines
+     *  unless a machine refused the commit : the reaction is incomplete, nothing is produced
+     *  a machine that could not be reached does not stop the production, the recovery commits it again
+     *
+     * @param links the links of the slaves of tx, every one applied
+     */
+    private void produceOnceApplied(long tx, ReactionRule rl, List<ExecutorSlaveLink> links) {
+        List<CompletableFuture<Boolean>> parts = new ArrayList<>();
+        boolean late = false;
+        for (ExecutorSlaveLink link : links) {
+            late |= (link.refused != null);
+            // a commit refused for an expired lease is over, sending it again would be refused too
+            //  one the machine can't tell about stays in doubt for the recovery
+            parts.add((link.refused == Status.EXPIRED) ? CompletableFuture.completedFuture(true) : link.applied);
+        }
+        try {
+            if (late) lateCommit(tx, rl);
+            else parts.addAll(produceOutputs(tx, rl));
+            settle(tx, parts);
+        }
+        catch (Exception e) {
+            System.err.println("Error during the production of " + txName(tx) + ": " + e);
+        }
+    }
+
+    /**
+     * a machine refused the commit of tx : the lease of its reservation had expired, or it had no trace of tx
+     *  the other machines may have consumed their inputs, but the outputs of rl are not produced elsewhere
+     */
+    private void lateCommit(long tx, ReactionRule rl) {
+        this.lateCommits.incrementAndGet();
+        logger.warning(() -> "[Exe@" + this.ipAddress + ":" + this.port + " " + txName(tx)
+                            + " Commited too late for " + rl + ", its outputs are not produced");
+    }
+
+    /**
+     * forget tx in the decision log once every part of it (decision applied, output produced) succeeded
+     *  if one failed, tx stays in doubt and is finished by the next recovery
+     */
+    private void settle(long tx, List<CompletableFuture<Boolean>> parts) {
+        if (this.decisionLog == null) return;
+
+        CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenRun(() -> {
+            for (CompletableFuture<Boolean> part : parts) {
+                if (!part.join()) return;
+            }
+            this.decisionLog.done(tx);
+        });
+    }
+
+
+    /**
+     * make a reaction with nothing to consume : no Phase I, no decision, the outputs are produced at once
+     *  nothing is logged either, a crash before the production loses no input
+     *
+     * @return COMMITTED, or FAILED if the outputs could not be queued
+     */
+    private AttemptResult attemptProduceOnly(ReactionRule rl) {
+        final long tx = nextTransaction();
+        try {
+            logger.info(() -> "[Exe@" + this.ipAddress + ":" + this.port + " " + txName(tx)
+                                + " Producing without inputs " + rl);
+            produceOutputs(tx, rl);
+            return AttemptResult.COMMITTED;
+        }
+        catch (Exception e) {
+            System.err.println("Error during attemptProduceOnly: " + e);
+            return AttemptResult.FAILED;
+        }
+    }
+
+    /**
+     * commit a reaction whose inputs all live on one machine, by the worker itself
+     *  without decision log : one commitOnePhase call checks and consumes every input at once,
+     *  and adds the outputs stored on the same machine, the others go to the production pipeline
+     *  with a decision log : the commit must be logged before the machine consumes, so the machine is called
+     *  twice (tryToAll, then commitAndProduce once the commit is on the disk), still without any SlaveConsumer
+     *
+     * @param rl reaction rule we're gonna try to launch
+     * @return COMMITTED if it could make it, otherwise why it had to abort
+     */
+    private AttemptResult attemptOnePhase(ReactionRule rl) {
+        final long tx = nextTransaction();
+        Map.Entry<MachineService, Map<Resource, Integer>> only = consumeGroups.get(rl).entrySet().iterator().next();
+        MachineService stub = only.getKey();
+        Map<Resource, Integer> demand = only.getValue();
+        boolean reserved = false;
+        boolean committed = false;
+
+        logger.info(() -> "[Exe@" + this.ipAddress + ":" + this.port + " " + txName(tx)
+                            + " One-phase commit for " + rl);
+        try {
+            if (this.decisionLog == null) {
+                Status state = Status.of(stub.commitOnePhase(tx, demand, outputsOn(rl, stub)));
+                if (state != Status.CONSUMED) {
+                    return refusedOnePhase(tx, demand, state);
+                }
+                produceOutputs(tx, rl);
+                return AttemptResult.COMMITTED;
+            }
+
+            long begin = System.nanoTime();
+            this.decisionLog.begin(tx, rl);
+            Status state = Status.of(stub.tryToAll(tx, demand));
+            long decided = System.nanoTime();
+            this.phaseOne.record(decided - begin);
+            if (state != Status.RESERVED) {
+                settle(tx, List.of());
+                return refusedOnePhase(tx, demand, state);
+            }
+            reserved = true;
+            this.decisionLog.commit(tx);
+            committed = true;
+            Status applied = commitOn(tx, rl, stub, demand);
+            this.phaseTwo.record(System.nanoTime() - decided);
+            if (applied != Status.CONSUMED) {
+                lateCommit(tx, rl);
+                // an expiry is final, a commit the machine can't tell about is left to the recovery
+                if (applied == Status.EXPIRED) settle(tx, List.of());
+                return AttemptResult.FAILED;
+            }
+            settle(tx, produceOutputs(tx, rl));
+            return AttemptResult.COMMITTED;
+        }
+        catch (Exception e) {
+            System.err.println("Error during attemptOnePhase: " + e);
+            if (committed) {
+                logger.warning(() -> "[Exe@" + this.ipAddress + ":" + this.port + " " + txName(tx)
+                                    + " committed but not finished, left to the recovery");
+            }
+            else if (reserved) {
+                try {
+                    stub.abortAll(tx, demand);
+                    settle(tx, List.of());
+                }
+                catch (Exception abort) {
+                    System.err.println("Could not abort " + demand.keySet() + " of " + txName(tx) + ", its lease will : " + abort);
+                }
+            }
+            return AttemptResult.FAILED;
+        }
+    }
+
+    /**
+     * log the refusal of the machine of a one-phase commit
+     */
+    private AttemptResult refusedOnePhase(long tx, Map<Resource, Integer> demand, Status state) {
+        logger.info(() -> "[Exe@" + this.ipAddress + ":" + this.port + " " + txName(tx)
+                            + " could not consume " + demand.keySet() + " (" + state + ")");
+        if (state == Status.INSUFFICIENT && this.cache != null) {
+            for (Resource R : demand.keySet()) {
+                this.cache.invalidate(R);
+            }
+        }
+        return AttemptResult.refused(state);
+    }
+
+    /**
+     * the Phase II of one machine, run by the worker : consume the demand of tx and add the outputs stored there
+     *  the outputs are marked in the decision log once the call returned
+     *
+     * @return CONSUMED, or why the machine refused the commit (EXPIRED, UNKNOWN) @see Machine#commitAndProduce
+     */
+    private Status commitOn(long tx, ReactionRule rl, MachineService stub, Map<Resource, Integer> demand) throws RemoteException {
+        Status committed = Status.of(stub.commitAndProduce(tx, demand, outputsOn(rl, stub)));
+        if (committed != Status.CONSUMED) {
+            logger.warning(() -> "[Exe@" + this.ipAddress + ":" + this.port + " " + txName(tx)
+                                + " Commit of " + demand.keySet() + " refused (" + committed + ")");
+            return committed;
+        }
+        producedWithCommit(tx, rl, stub);
+        return committed;
+    }
+
+    /**
+     * @return the outputs of rl stored on stub, added by the commit of stub @see MachineService#commitAndProduce
+     */
+    private Map<Resource, Integer> outputsOn(ReactionRule rl, MachineService stub) {
+        return this.commitOutputs.get(rl).getOrDefault(stub, Map.of());
+    }
+
+    /**
+     * mark in the decision log the outputs of rl added by the commit of stub, by their index in the right-hand side
+     *  only called once the machine applied the commit, a commit refused added nothing
+     */
+    private void producedWithCommit(long tx, ReactionRule rl, MachineService stub) {
+        if (this.decisionLog == null) return;
+        int output = 0;
+        for (Resource R : rl.getToProduce().keySet()) {
+            if (outputsOn(rl, stub).containsKey(R)) this.decisionLog.produced(tx, output);
+            ++output;
+        }
+    }
+
+    /**
+     * queue the resources on the right-hand side of a committed reaction in the production pipeline
+     *  they are sent with the outputs of the other reactions for the same machine @see ProductionPipeline
+     *  the outputs stored on a machine of the left-hand side are left out, its commit adds them @see commitOutputs
+     *  each output produced is marked in the decision log, by its index in the right-hand side
+     *
+     * @return for each output queued, completed with true once it was produced
+     */
+    private List<CompletableFuture<Boolean>> produceOutputs(long tx, ReactionRule rl) {
+        List<CompletableFuture<Boolean>> produced = new ArrayList<>();
+        int output = -1;
+        for (Map.Entry<Resource, Integer> entry : rl.getToProduce().entrySet()) {
+            Resource resource = entry.getKey();
+            int qtyRequired = entry.getValue();
+            MachineService stub = locate(resource);
+            ++output;
+
+            if (this.cache != null) this.cache.produced(resource, qtyRequired);
+            if (outputsOn(rl, stub).containsKey(resource)) continue;
+
+            CompletableFuture<Boolean> done = this.production.submit(stub, resource, qtyRequired);
+            if (this.decisionLog != null) {
+                final int index = output;
+                done.thenAccept(ok -> { if (ok) this.decisionLog.produced(tx, index); });
+            }
+            produced.add(done);
+        }
+        return produced;
+    }
+
+    /**
+     * attempt a reaction with --acquire ordered
+     *  the inputs are reserved one at a time, in the order of their names, by the worker itself
+     *  when the units of an input are held by another transaction, it waits for them in the queue
+     *  of the machine (@see Machine#tryToWait) instead of aborting, keeping the reservations already made
+     *  every executor acquiring in the same order, no cycle of waits can form, so no deadlock
+     *  the wait is still bounded by ORDERED_WAIT_MILLIS against a transaction that never ends
+     *
+     *  once every input is reserved the reaction commits : one consumeAll per machine, then the production
+     *
+     * @param rl reaction rule we're gonna try to launch
+     * @return COMMITTED if it could make it, otherwise why it had to abort
+     */
+    private AttemptResult attemptOrdered(ReactionRule rl) {
+        final long tx = nextTransaction();
+        Resource[] inputs = this.orderedInputs.get(rl);
+        int held = 0;
+        boolean committed = false;
+        final long begin = System.nanoTime();
+
+        logger.info(() ->"[Exe@" + this.ipAddress + ":" + this.port + " " + txName(tx)
+                            + " Beginning ordered acquisition for " + rl);
+        try {
+            if (this.decisionLog != null) this.decisionLog.begin(tx, rl);
+
+            for (; held < inputs.length; ++held) {
+                Resource R = inputs[held];
+                int n = rl.getToConsume().get(R);
+                MachineService stub = locate(R);
+
+                Status state = Status.of(stub.tryToWait(tx, R, n, ORDERED_WAIT_MILLIS));
+
+                if (state != Status.RESERVED) {
+                    final Status refusal = state;
+                    logger.info(() -> "[Exe@" + this.ipAddress + ":" + this.port + " " + txName(tx)
+                                        + " could not reserve " + R + " (" + refusal + ")");
+                    if (refusal == Status.INSUFFICIENT && this.cache != null) this.cache.invalidate(R);
+                    long decided = System.nanoTime();
+                    this.phaseOne.record(decided - begin);
+                    if (releaseOrdered(tx, rl, inputs, held)) settle(tx, List.of());
+                    this.phaseTwo.record(System.nanoTime() - decided);
+                    return AttemptResult.refused(refusal);
+                }
+            }
+
+            long decided = System.nanoTime();
+            this.phaseOne.record(decided - begin);
+            if (this.decisionLog != null) this.decisionLog.commit(tx);
+            committed = true;
+            Status refused = null;
+            for (Map.Entry<MachineService, Map<Resource, Integer>> entry : consumeGroups.get(rl).entrySet()) {
+                // the decision is taken, the other machines still commit when one refuses
+                Status applied = commitOn(tx, rl, entry.getKey(), entry.getValue());
+                if (applied != Status.CONSUMED && refused != Status.UNKNOWN) refused = applied;
+            }
+            this.phaseTwo.record(System.nanoTime() - decided);
+            if (refused != null) {
+                lateCommit(tx, rl);
+                if (refused == Status.EXPIRED) settle(tx, List.of());
+                return AttemptResult.FAILED;
+            }
+            settle(tx, produceOutputs(tx, rl));
+
+            logger.info(() ->"[Exe@" + this.ipAddress + ":" + this.port + " " + txName(tx)
+                                + " Ending ordered acquisition for " + rl);
+            return AttemptResult.COMMITTED;
+        }
+        catch (Exception e) {
+            System.err.println("Error during attemptOrdered: " + e);
+            if (committed) {
+                logger.warning(() -> "[Exe@" + this.ipAddress + ":" + this.port + " " + txName(tx)
+                                    + " committed but not finished, left to the recovery");
+            }
+            else if (releaseOrdered(tx, rl, inputs, held)) {
+                settle(tx, List.of());
+            }
+            return AttemptResult.FAILED;
+        }
+    }
+
+    /**
+     * abort the first held inputs reserved by an ordered acquisition
+     * @return true if every abort reached its machine
+     */
+    private boolean releaseOrdered(long tx, ReactionRule rl, Resource[] inputs, int held) {
+        boolean released = true;
+        for (int i = 0; i < held; ++i) {
+            Resource R = inputs[i];
+            try {
+                locate(R).abort(tx, R, rl.getToConsume().get(R));
+            }
+            catch (Exception e) {
+                System.err.println("Could not abort " + R + " of " + txName(tx) + ", its lease will : " + e);
+                released = false;
+            }
+        }
+        return released;
+    }
+
+    /**
+     * finish the transactions the decision log found in doubt, before the first attempt
+     *  - committed : the decision is sent again to every machine (commitAndProduce with the outputs stored there,
+     *                a machine that already applied it answers CONSUMED without applying it twice), then the other
+     *                outputs not marked as produced are sent in one batch per machine, its id is t.tx | RECOVERY_BATCH
+     *                so a recovery run again after a crash is ignored by the machines that applied it,
+     *                they are marked produced once the machine answered
+     *                a machine answering EXPIRED gave the inputs back when their lease expired : the reaction did
+     *                not happen there, nothing of it is marked produced nor produced elsewhere, and it is dropped
+     *                a machine answering UNKNOWN forgot the transaction, it may have been applied there :
+     *                nothing is produced elsewhere and the transaction stays in doubt rather than being dropped
+     *  - only begun : presumed abort, each input is given back (ignored by a machine not holding it)
+     *  a transaction that can't be finished (machine unreachable) stays in doubt until the next start
+     *  the ids of this run can't be the ones in doubt, they have another incarnation @see nextTransaction
+     *
+     * @return the number of transactions finished
+     */
+    public int recover() {
+        if (this.decisionLog == null) return 0;
+
+        int finished = 0;
+        for (DecisionLog.InDoubt t : this.decisionLog.getRecovered().values()) {
+            try {
+                if (t.committed) {
+                    Status refused = null;
+                    for (Map.Entry<MachineService, Map<Resource, Integer>> entry : groupByMachine(needed(t.consume)).entrySet()) {
+                        MachineService stub = entry.getKey();
+                        Map<Resource, Integer> outputs = new HashMap<>();
+                        List<Integer> indexes = new ArrayList<>();
+                        int output = 0;
+                        for (Map.Entry<Resource, Integer> out : t.produce.entrySet()) {
+                            if (locate(out.getKey()) == stub && !t.produced.get(output)) {
+                                outputs.put(out.getKey(), out.getValue());
+                                indexes.add(output);
+                            }
+                            ++output;
+                        }
+                        Status committed = Status.of(stub.commitAndProduce(t.tx, entry.getValue(), outputs));
+                        if (committed != Status.CONSUMED) {
+                            if (refused != Status.UNKNOWN) refused = committed;
+                            logger.warning(() -> "[Exe@" + this.ipAddress + ":" + this.port + " " + txName(t.tx)
+                                                + " Commit of " + entry.getValue().keySet() + " refused (" + committed + ")");
+                            continue;
+                        }
+                        for (int index : indexes) {
+                            this.decisionLog.produced(t.tx, index);
+                        }
+                    }
+                    if (refused == Status.UNKNOWN) {
+                        logger.warning(() -> "[Exe@" + this.ipAddress + ":" + this.port + " Could not recover " + t
+                                            + " : a machine has no trace of it anymore, it stays in doubt");
+                        continue;
+                    }
+                    if (refused != null) {
+                        // nothing left to finish, sending the commit again would not make it happen
+                        this.decisionLog.done(t.tx);
+                        logger.warning(() -> "[Exe@" + this.ipAddress + ":" + this.port + " Could not recover " + t
+                                            + " : a lease expired before the commit, its outputs are not produced");
+                        continue;
+                    }
+                    Map<MachineService, Map<Resource, Integer>> missing = new LinkedHashMap<>();
+                    Map<MachineService, List<Integer>> missingIndexes = new HashMap<>();
+                    int output = 0;
+                    for (Map.Entry<Resource, Integer> entry : t.produce.entrySet()) {
+                        if (!t.produced.get(output)) {
+                            MachineService stub = locate(entry.getKey());
+                            missing.computeIfAbsent(stub, k -> new HashMap<>()).merge(entry.getKey(), entry.getValue(), Integer::sum);
+                            missingIndexes.computeIfAbsent(stub, k -> new ArrayList<>()).add(output);
+                        }
+                        ++output;
+                    }
+                    for (Map.Entry<MachineService, Map<Resource, Integer>> entry : missing.entrySet()) {
+                        // the same id at each recovery of t : a machine that applied it already ignores it
+                        entry.getKey().produceAll(t.tx | RECOVERY_BATCH, entry.getValue());
+                        for (int index : missingIndexes.get(entry.getKey())) {
+                            this.decisionLog.produced(t.tx, index);
+                        }
+                    }
+                }
+                else {
+                    for (Map.Entry<Resource, Integer> entry : t.consume.entrySet()) {
+                        locate(entry.getKey()).abort(t.tx, entry.getKey(), entry.getValue());
+                    }
+                }
+                this.decisionLog.done(t.tx);
+                ++finished;
+                logger.info(() -> "[Exe@" + this.ipAddress + ":" + this.port + " Recovered " + t);
+            }
+            catch (Exception e) {
+                logger.warning(() -> "[Exe@" + this.ipAddress + ":" + this.port + " Could not recover " + t + " : " + e);
+            }
+        }
+        return finished;
+    }
+
+    /**
+     * the loop of a worker : select a reaction, attempt it, wait, and again
+     *  with --concurrency N, N workers run this loop so N transactions are in flight
+     *  the attempts counters are shared by the workers
+     *
+     * @param pacing how long to wait after each attempt, shared by the workers @see Pacing
+     */
+    public void runWorker(Pacing pacing) {
+        int streak = 0;
+        while(true) {
+            ReactionRule attempt = selectReaction(pacing);
+            try {
+                long wait;
+                if (attempt == null) {
+                    logger.fine(() -> "[Exe@" + this.ipAddress + ":" + this.port 
+                                        +" No reaction can be made with the units known, waiting");
+                    wait = pacing.idle();
+                }
+                else {
+                    AttemptResult outcome = attemptAndReport(attempt);
+                    streak = (outcome == AttemptResult.COMMITTED) ? 0 : streak + 1;
+                    wait = pacing.pause(attempt, outcome, streak);
+                }
+//waiting time before launching next reaction 
+                TimeUnit.MILLISECONDS.sleep(wait);
+            } 
+            catch(Exception e) {
+                System.err.println("Error during 2PC" + e);
+                System.exit(1);
+            }
+
+        }
+    }
+
+    /**
+     * the loop of a worker in reactive mode : attempt the reactions the machines made possible
+     *  a commit is chained at once, the pacing is only waited after a failure
+     *
+     * @param scheduler the ready queue fed by the changes of the machines @see ReactiveScheduler
+     * @param pacing how long to wait after a failed attempt @see Pacing
+     */
+    public void runReactiveWorker(ReactiveScheduler scheduler, Pacing pacing) {
+        int streak = 0;
+        while(true) {
+            try {
+                ReactionRule attempt = scheduler.next();
+                AttemptResult outcome = attemptAndReport(attempt);
+                if (outcome == AttemptResult.COMMITTED) {
+                    streak = 0;
+                    // no change announces a reaction without inputs, it is paced like in polling mode
+                    if (getCommitPath(attempt) == CommitPath.PRODUCE_ONLY) {
+                        TimeUnit.MILLISECONDS.sleep(pacing.idle());
+                    }
+                }
+                else {
+                    TimeUnit.MILLISECONDS.sleep(pacing.pause(attempt, outcome, ++streak));
                 }
+            } 
+            catch(Exception e) {
+                System.err.println("Error during 2PC" + e);
+                System.exit(1);
             }
+        }
+    }
 
-            logger.info(() -> "[Exe@" + this.ipAddress + ":" + this.port 
-                                 + " Ending phase I for " + rl);
+    /**
+     * attempt one reaction, report its outcome to the policy then log its result and the overall ratio
+     * @return the result of the attempt
+     */
+    private AttemptResult attemptAndReport(ReactionRule attempt) {
+        logger.info(() -> "[Exe@" + this.ipAddress + ":" + this.port 
+                            +" Trying to make : " + attempt);
 
-            logger.info(() -> "[Exe@" + this.ipAddress + ":" +this.port
-                                +" Beginning phase II for " + rl);
-//deciding if we commit or abort
-            String decision = attempt ? "COMMIT" : "ABORT";
+        long start = System.nanoTime();
+        AttemptResult outcome = attemptReaction(attempt);
+        long nanos = System.nanoTime() - start;
+        this.policy.record(attempt, outcome, nanos);
+        this.endToEnd.record(nanos);
+        boolean result = (outcome == AttemptResult.COMMITTED);
 
-            for (ExecutorSlaveLink link : links) {
-                link.out.writeObject(decision);
-                link.out.flush();
-                link.socket.close();
-            }
+        final int ta = this.totalAttempts.incrementAndGet();
+        final int sa = (result) ? this.successfulAttempts.incrementAndGet() : this.successfulAttempts.get();
 
-//If commit, trigger production on the right-hand side
-            if (attempt == true) {
-                //Creating one SlaveProducer per resource to produce
-                for (Map.Entry<Resource, Integer> entry : rl.getToProduce().entrySet()) {
-                    Resource resource = entry.getKey();
-                    int qtyRequired = entry.getValue();
-                    MachineService stub = locations.get(resource);
 
-                    SlaveProducer sp = new SlaveProducer(resource, qtyRequired, stub, this.port);
-                    new Thread(sp).start();
-                }
-                
-            }
-            logger.info(() -> "[Exe@" + this.ipAddress + ":" + this.port
-                                +" Ending phase II for " + rl);
+        logger.info(() ->"[Exe@" + this.ipAddress + ":" + this.port
+                            +" Reaction attempted : " + attempt 
+                            + " result : " + result + (result ? "" : " (" + outcome + ")"));
 
-        } 
-        catch (Exception e) {
-            System.err.println("Error during attemptReaction: " + e);
-            e.printStackTrace();
-            attempt = false;
-        }
+        final float ratio = (float) sa / ta;
 
-        return attempt;
+        logger.info( () -> "[Exe@" + this.ipAddress + ":" + this.port
+                                +" Overall ratio at attempt " + ta + " : " + ratio);
+        return outcome;
     }
 
-
     /**
      * the main method of the class
      *  it starts by parsing the arguments, then initialize a executor and infinitely launch reaction
@@ -202,52 +1179,88 @@ public class Executor {
             int portRegistry = parsePortRegistry(args);
             int nb = parseMachines(args);
             int delay = parseDelay(args);
-
-            Map<Resource, MachineService> locs = lookUpMachine(addressRegistry, portRegistry, nb);
+            String engine = parseEngine(args);
+            int poolSize = parsePoolSize(args);
+            int maxParticipants = parseMaxParticipants(args, engine, poolSize);
+            int concurrency = parseConcurrency(args);
+            long cacheStaleness = parseCacheStaleness(args);
+            String mode = parseMode(args);
+            String policyName = parsePolicy(args);
+            double epsilon = parseEpsilon(args);
+            String pacingKind = parsePacing(args);
+            int minDelay = parseMinDelay(args);
+            int maxDelay = parseMaxDelay(args, delay);
+            boolean ordered = "ordered".equals(parseAcquire(args));
+            String decisionFile = parseDecisionLog(args);
+            int produceBatch = parseProduceBatch(args);
+            long produceLinger = parseProduceLinger(args);
+
+            Transport transport = parseTransport(args);
+
+            Map<Resource, MachineService> locs = lookUpMachine(addressRegistry, portRegistry, nb, transport);
 
             ReactionRule[] reacts = parseReaction(args);
 
-            Executor executor = new Executor(locs, reacts, portSocket);
+            DecisionLog decisionLog = (decisionFile == null) ? null
+                                      : new DecisionLog(Paths.get(decisionFile), DecisionLog.DEFAULT_COMPACT_BYTES);
+
+            Executor executor = new Executor(locs, reacts, portSocket,
+                                             newEngine(engine, poolSize), maxParticipants, cacheStaleness,
+                                             SelectionPolicy.of(policyName, reacts, epsilon, new Random(System.currentTimeMillis())),
+                                             ordered, decisionLog, produceBatch, produceLinger);
 
             
             configureLogging(portSocket);
 
+            ManagementFactory.getPlatformMBeanServer()
+                             .registerMBean(executor, new ObjectName("main:type=Executor,port=" + portSocket));
+
             logger.info(() -> "[Exe@"+ executor.ipAddress + ":" +portSocket
                                 +" Ready ! Reaction rules available :" + Arrays.toString(reacts) );
 
+            if (decisionLog != null) {
+                int recovered = executor.recover();
+                logger.info(() -> "[Exe@" + executor.ipAddress + ":" + portSocket + " Recovered " + recovered
+                                    + " transactions in doubt, decision log : " + decisionLog.report());
+            }
+
             logger.fine("Starting...");
 
-            int total_attempt = 0;
-            int successful_attempt = 0;
+            Pacing pacing = new Pacing(pacingKind, reacts, delay, minDelay, maxDelay);
 
-            while(true) {
-                ReactionRule attempt = executor.selectReaction();
-                logger.info(() -> "[Exe@" + executor.ipAddress + ":" +portSocket 
-                                    +" Trying to make : " + attempt);
+            Thread reporter = new Thread(() -> {
                 try {
-                    boolean result = executor.attemptReaction(attempt);
-
-                    final int ta = ++total_attempt;
-                    final int sa = (result) ? ++successful_attempt : successful_attempt;
-
-
-                    logger.info(() ->"[Exe@" + executor.ipAddress + ":" + portSocket
-                                        +" Reaction attempted : " + attempt 
-                                        + " result : " + result);
+                    while (true) {
+                        TimeUnit.SECONDS.sleep(10);
+                        logger.info(() -> "[Exe@" + executor.ipAddress + ":" + portSocket
+                                            + " Reactions stats (" + policyName + ") :" + executor.getPolicy().report()
+                                            + " production : " + executor.getProduction().report()
+                                            + " late commits : " + executor.getLateCommits()
+                                            + ((decisionLog == null) ? "" : " decision log : " + decisionLog.report()));
+                    }
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "stats");
+            reporter.setDaemon(true);
+            reporter.start();
 
-                    final float ratio = (float) sa / ta;
+            if ("reactive".equals(mode)) {
+                ReactiveScheduler scheduler = new ReactiveScheduler(executor, delay);
+                scheduler.start();
 
-                    logger.info( () -> "[Exe@" + executor.ipAddress + ":" + portSocket
-                                            +" Overall ratio at attempt " + ta + " : " + ratio);
-//waiting time before launching next reaction 
-                    TimeUnit.MILLISECONDS.sleep(delay);
-                } 
-                catch(Exception e) {
-                    System.err.println("Error during 2PC" + e);
-                    System.exit(1);
+                for (int i = 1; i < concurrency; ++i) {
+                    new Thread(() -> executor.runReactiveWorker(scheduler, pacing), "worker-" + i).start();
                 }
+                executor.runReactiveWorker(scheduler, pacing);
+            }
 
+            // concurrency - 1 extra workers, the main thread is the last one
+            for (int i = 1; i < concurrency; ++i) {
+                new Thread(() -> executor.runWorker(pacing), "worker-" + i).start();
             }
+            executor.runWorker(pacing);
 
         }  
         catch( Exception e) {
@@ -367,6 +1380,393 @@ public class Executor {
         }
         throw new IllegalArgumentException("You must provide --delay <value>");
 
+    }
+
+    /**
+     * method that extract the optional transport parameter from args
+     *  "rmi" (default) calls the machines through their RMI stubs,
+     *  "nio" through their NioMachineServer (machines must be started with --nioPort)
+     * @param args the argument of main
+     * @return the transport
+     * @throws IllegalArgumentException
+     */
+    public static Transport parseTransport(String[] args) {
+
+        for (int i = 0; i < args.length; ++i) {
+            if ("--transport".equals(args[i])) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing args after --transport");
+                }
+                return Transport.of(args[++i]);
+            }
+        }
+        return Transport.RMI;
+
+    }
+
+    /**
+     * method that extract the optional concurrency parameter from args
+     *  the number of transactions the executor keeps in flight, 1 by default
+     * @param args the argument of main
+     * @return the number of workers
+     * @throws IllegalArgumentException
+     */
+    public static int parseConcurrency(String[] args) {
+
+        for (int i = 0; i < args.length; ++i) {
+            if ("--concurrency".equals(args[i])) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing args after --concurrency");
+                }
+                int n = Integer.parseInt(args[++i]);
+                if (n < 1) throw new IllegalArgumentException("--concurrency must be positive");
+                return n;
+            }
+        }
+        return 1;
+
+    }
+
+    /**
+     * method that extract the optional mode parameter from args
+     *  "polling" (default) selects a reaction at random every --delay,
+     *  "reactive" attempts the reactions made possible by the changes of the machines @see ReactiveScheduler
+     * @param args the argument of main
+     * @return the mode
+     * @throws IllegalArgumentException
+     */
+    public static String parseMode(String[] args) {
+
+        for (int i = 0; i < args.length; ++i) {
+            if ("--mode".equals(args[i])) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing args after --mode");
+                }
+                String mode = args[++i];
+                if (!"polling".equals(mode) && !"reactive".equals(mode)) {
+                    throw new IllegalArgumentException("--mode must be polling or reactive");
+                }
+                return mode;
+            }
+        }
+        return "polling";
+
+    }
+
+    /**
+     * method that extract the optional policy parameter from args
+     *  "uniform" (default) or "greedy" @see SelectionPolicy
+     * @param args the argument of main
+     * @return the name of the policy
+     * @throws IllegalArgumentException
+     */
+    public static String parsePolicy(String[] args) {
+
+        for (int i = 0; i < args.length; ++i) {
+            if ("--policy".equals(args[i])) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing args after --policy");
+                }
+                String policy = args[++i];
+                if (!"uniform".equals(policy) && !"greedy".equals(policy)) {
+                    throw new IllegalArgumentException("--policy must be uniform or greedy");
+                }
+                return policy;
+            }
+        }
+        return DEFAULT_POLICY;
+
+    }
+
+    /**
+     * method that extract the optional epsilon parameter from args
+     *  the share of random selections of the greedy policy
+     * @param args the argument of main
+     * @return epsilon, between 0 and 1
+     * @throws IllegalArgumentException
+     */
+    public static double parseEpsilon(String[] args) {
+
+        for (int i = 0; i < args.length; ++i) {
+            if ("--epsilon".equals(args[i])) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing args after --epsilon");
+                }
+                double epsilon = Double.parseDouble(args[++i]);
+                if (epsilon < 0 || epsilon > 1) throw new IllegalArgumentException("--epsilon must be between 0 and 1");
+                return epsilon;
+            }
+        }
+        return DEFAULT_EPSILON;
+
+    }
+
+    /**
+     * method that extract the optional acquire parameter from args
+     *  "parallel" (default) prepares every machine at once and aborts on the first refusal,
+     *  "ordered" reserves the inputs one at a time in the order of their names, waiting on locked ones @see attemptOrdered
+     * @param args the argument of main
+     * @return the acquisition mode
+     * @throws IllegalArgumentException
+     */
+    public static String parseAcquire(String[] args) {
+
+        for (int i = 0; i < args.length; ++i) {
+            if ("--acquire".equals(args[i])) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing args after --acquire");
+                }
+                String acquire = args[++i];
+                if (!"parallel".equals(acquire) && !"ordered".equals(acquire)) {
+                    throw new IllegalArgumentException("--acquire must be parallel or ordered");
+                }
+                return acquire;
+            }
+        }
+        return "parallel";
+
+    }
+
+    /**
+     * method that extract the optional decisionLog parameter from args
+     *  the file keeping the decisions of the executor, the transactions it finds in doubt are finished at start
+     *  each executor needs its own file
+     * @param args the argument of main
+     * @return the path of the file, null if the decisions are only kept in memory
+     * @throws IllegalArgumentException
+     */
+    public static String parseDecisionLog(String[] args) {
+
+        for (int i = 0; i < args.length; ++i) {
+            if ("--decisionLog".equals(args[i])) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing args after --decisionLog");
+                }
+                return args[++i];
+            }
+        }
+        return null;
+
+    }
+
+    /**
+     * method that extract the optional produceBatch parameter from args
+     *  the number of outputs queued for one machine that are sent at once @see ProductionPipeline
+     * @param args the argument of main
+     * @return the size of a batch, ProductionPipeline.DEFAULT_BATCH_SIZE by default
+     * @throws IllegalArgumentException
+     */
+    public static int parseProduceBatch(String[] args) {
+
+        for (int i = 0; i < args.length; ++i) {
+            if ("--produceBatch".equals(args[i])) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing args after --produceBatch");
+                }
+                int batch = Integer.parseInt(args[++i]);
+                if (batch < 1) throw new IllegalArgumentException("--produceBatch must be positive");
+                return batch;
+            }
+        }
+        return ProductionPipeline.DEFAULT_BATCH_SIZE;
+
+    }
+
+    /**
+     * method that extract the optional produceLinger parameter from args
+     *  the longest wait (ms) of an output in the production pipeline, 0 sends each output at once
+     * @param args the argument of main
+     * @return the linger, ProductionPipeline.DEFAULT_LINGER_MILLIS by default
+     * @throws IllegalArgumentException
+     */
+    public static long parseProduceLinger(String[] args) {
+
+        for (int i = 0; i < args.length; ++i) {
+            if ("--produceLinger".equals(args[i])) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing args after --produceLinger");
+                }
+                long linger = Long.parseLong(args[++i]);
+                if (linger < 0) throw new IllegalArgumentException("--produceLinger can't be negative");
+                return linger;
+            }
+        }
+        return ProductionPipeline.DEFAULT_LINGER_MILLIS;
+
+    }
+
+    /**
+     * method that extract the optional pacing parameter from args
+     *  "fixed" (default) waits --delay after every attempt, "adaptive" waits according to the outcome @see Pacing
+     * @param args the argument of main
+     * @return the kind of pacing
+     * @throws IllegalArgumentException
+     */
+    public static String parsePacing(String[] args) {
+
+        for (int i = 0; i < args.length; ++i) {
+            if ("--pacing".equals(args[i])) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing args after --pacing");
+                }
+                String pacing = args[++i];
+                if (!"fixed".equals(pacing) && !"adaptive".equals(pacing)) {
+                    throw new IllegalArgumentException("--pacing must be fixed or adaptive");
+                }
+                return pacing;
+            }
+        }
+        return "fixed";
+
+    }
+
+    /**
+     * method that extract the optional minDelay parameter from args
+     *  the shortest wait (ms) of the adaptive pacing, after a commit
+     * @param args the argument of main
+     * @return the lower bound, 0 by default
+     * @throws IllegalArgumentException
+     */
+    public static int parseMinDelay(String[] args) {
+
+        for (int i = 0; i < args.length; ++i) {
+            if ("--minDelay".equals(args[i])) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing args after --minDelay");
+                }
+                int min = Integer.parseInt(args[++i]);
+                if (min < 0) throw new IllegalArgumentException("--minDelay can't be negative");
+                return min;
+            }
+        }
+        return 0;
+
+    }
+
+    /**
+     * method that extract the optional maxDelay parameter from args
+     *  the longest wait (ms) of the adaptive pacing, also the longest parking of a reaction
+     * @param args the argument of main
+     * @param delay the --delay
+     * @return the upper bound, 20 times the delay by default
+     * @throws IllegalArgumentException
+     */
+    public static int parseMaxDelay(String[] args, int delay) {
+
+        for (int i = 0; i < args.length; ++i) {
+            if ("--maxDelay".equals(args[i])) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing args after --maxDelay");
+                }
+                return Integer.parseInt(args[++i]);
+            }
+        }
+        return Math.max(delay, 1) * 20;
+
+    }
+
+    /**
+     * method that extract the optional cacheStaleness parameter from args
+     *  how long (ms) the units read from a machine are trusted to skip reactions, 0 disables the cache
+     * @param args the argument of main
+     * @return the staleness bound, DEFAULT_CACHE_STALENESS by default
+     * @throws IllegalArgumentException
+     */
+    public static long parseCacheStaleness(String[] args) {
+
+        for (int i = 0; i < args.length; ++i) {
+            if ("--cacheStaleness".equals(args[i])) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing args after --cacheStaleness");
+                }
+                long staleness = Long.parseLong(args[++i]);
+                if (staleness < 0) throw new IllegalArgumentException("--cacheStaleness can't be negative");
+                return staleness;
+            }
+        }
+        return DEFAULT_CACHE_STALENESS;
+
+    }
+
+    /**
+     * method that extract the optional engine parameter from args
+     *  the engine runs the slaves of the executor, "virtual" (default) or "pool"
+     * @param args the argument of main
+     * @return the kind of engine
+     * @throws IllegalArgumentException
+     */
+    public static String parseEngine(String[] args) {
+        String engine = DEFAULT_ENGINE;
+
+        for (int i = 0; i < args.length; ++i) {
+            if ("--engine".equals(args[i])) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing args after --engine");
+                }
+                engine = args[++i];
+            }
+        }
+
+        // virtual threads are final since Java 21
+        if ("virtual".equals(engine) && Runtime.version().feature() < 21) {
+            logger.warning("No virtual threads on this JVM, --engine pool is used instead");
+            return "pool";
+        }
+        return engine;
+
+    }
+
+    /**
+     * method that extract the optional poolSize parameter from args
+     *  number of threads when the engine is "pool" (or when virtual threads are not available)
+     * @param args the argument of main
+     * @return the size of the pool
+     * @throws IllegalArgumentException
+     */
+    public static int parsePoolSize(String[] args) {
+
+        for (int i = 0; i < args.length; ++i) {
+            if ("--poolSize".equals(args[i])) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing args after --poolSize");
+                }
+                int size = Integer.parseInt(args[++i]);
+                if (size < 1) throw new IllegalArgumentException("--poolSize must be positive");
+                return size;
+            }
+        }
+        return DEFAULT_POOL_SIZE;
+
+    }
+
+    /**
+     * method that extract the optional maxParticipants parameter from args
+     *  the number of slaves allowed in flight at the same time
+     *  with a pool it can't exceed the pool size, otherwise admitted slaves could wait for a thread forever
+     * @param args the argument of main
+     * @param engine the engine given by --engine
+     * @param poolSize the size given by --poolSize
+     * @return the cap on slaves in flight
+     * @throws IllegalArgumentException
+     */
+    public static int parseMaxParticipants(String[] args, String engine, int poolSize) {
+        int max = "pool".equals(engine) ? poolSize : DEFAULT_MAX_PARTICIPANTS;
+
+        for (int i = 0; i < args.length; ++i) {
+            if ("--maxParticipants".equals(args[i])) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing args after --maxParticipants");
+                }
+                max = Integer.parseInt(args[++i]);
+            }
+        }
+
+        if (max < 1) throw new IllegalArgumentException("--maxParticipants must be positive");
+        if (!"virtual".equals(engine) && max > poolSize) {
+            throw new IllegalArgumentException("--maxParticipants can't exceed --poolSize with engine " + engine);
+        }
+        return max;
+
     }
 
      /**
@@ -374,11 +1774,12 @@ public class Executor {
      *  then store the information about what they contain into a map 
      * @param address registry's host address
      * @param nb number of machines connected
+     * @param transport how the machines are reached once found in the registry @see Transport
      * @return a map where for each resource keeps its container machine (we recall that no two distinct machines can store same resource)
      * @throws IllegalArgumentException
      * @throws Exception
      */
-    public static Map<Resource, MachineService> lookUpMachine(String address, int port, int nb) {
+    public static Map<Resource, MachineService> lookUpMachine(String address, int port, int nb, Transport transport) {
         Map<Resource, MachineService> result = new ConcurrentHashMap<>();
         try{
             Registry registry = LocateRegistry.getRegistry(address, port);
@@ -391,11 +1792,9 @@ public class Executor {
                     throw new IllegalArgumentException("Machine " + i + " not registered");
                 }
 
-                String allResources = stub.enumResource();
-                for ( String name : allResources.split(",")){
-                    Resource resource = new Resource(name);
-
-                    result.put(resource, stub);
+                MachineService service = transport.connect(stub);
+                for ( Resource resource : stub.enumResource().getResources()){
+                    result.put(resource, service);
                 }
             }
         }
@@ -425,7 +1824,7 @@ public class Executor {
                     throw new IllegalArgumentException("Missing args after --reaction");
                 }
 
-                String sides[] = args[++i].split("->");
+                String sides[] = args[++i].split("->", -1);
                 if (sides.length != 2) throw new IllegalArgumentException("Wrong format reaction : " + args[i]);
  
                 Map<Resource, Integer> leftHand = parseSide(sides[0]);
@@ -442,6 +1841,7 @@ public class Executor {
     /**
      * static method to parse left hand operand of reaction into a map 
      *      e.g. "2A + B" parses into map : {("A", 2);("B", 1)}
+     *      an empty side parses into an empty map (e.g. the left side of " -> A", a source of A) @see CommitPath
      * 
      * @param operands raw leftside of reaction
      * @return a map repertorying resource and quantity needed
@@ -450,6 +1850,11 @@ public class Executor {
     public static Map<Resource, Integer> parseSide(String operands) {
         Map<Resource, Integer> result = new ConcurrentHashMap<>();
 
+        // an empty side : a reaction producing from nothing, or consuming without producing
+        if (operands.trim().isEmpty()) {
+            return result;
+        }
+
         String[] parts = operands.split("\\+");
         for( String term : parts) {
             term = term.trim();
@@ -495,6 +1900,9 @@ public class Executor {
 
         System.err.println("Usage :");
         System.err.println("  java main.Executor --portSocket <number> --registry \"address\" --portRegistry <value> --machines <number> --delay <number> --reaction \"3A + B -> C\" --reaction \"B + 2C -> 2D\" ...");
+        System.err.println("  options : [--transport rmi|nio] [--concurrency <number>] [--engine virtual|pool] [--poolSize <number>] [--maxParticipants <number>] [--cacheStaleness <ms>] [--mode polling|reactive]");
+        System.err.println("            [--policy uniform|greedy] [--epsilon <number>] [--pacing fixed|adaptive] [--minDelay <ms>] [--maxDelay <ms>]");
+        System.err.println("            [--acquire parallel|ordered] [--decisionLog <file>] [--produceBatch <number>] [--produceLinger <ms>]");
     }
 
     /**
@@ -0,0 +1,59 @@
+/**
+ * @author Lyes Djemaa
+ * @version 1.0
+ *
+ * The interface ExecutorMXBean
+ *
+ * What an Executor shows through JMX, registered by Executor.main as main:type=Executor,port=<portSocket>
+ *  to watch it live with jconsole (or any JMX client) instead of reading its log
+ *
+ *  - attempts, commits : since the start, every reaction together
+ *  - aborts : the attempts not committed by reason (LOCKED, INSUFFICIENT, FAILED) @see AttemptResult
+ *  - lateCommits : the commits a machine refused (the lease had expired, or it had no trace of the transaction),
+ *                  their outputs are not produced
+ *                  they are FAILED attempts, except in the parallel 2PC whose worker does not wait for the Phase II
+ *  - rules : the counters of each reaction by its text (e.g. "A + B -> C") @see RuleStats
+ *  - phaseOne : from the beginning of a transaction until the votes decide it (2PC, parallel or ordered)
+ *  - phaseTwo : from the decision until every machine applied it (the outputs sent by the pipeline are left out)
+ *  - endToEnd : a whole attempt, as the worker waits for it
+ * a one-phase commit without decision log and a reaction without inputs have no phases, they are only in endToEnd
+ * the latencies are the ones of the interval since the last resetLatencies (since the start without one),
+ *  reading them changes nothing, so several clients may watch the same bean @see LatencyHistogram
+ */
+package main;
+
+import java.util.Map;
+
+public interface ExecutorMXBean {
+
+    public long getAttempts();
+
+    public long getCommits();
+
+    public long getLateCommits();
+
+    public Map<String, Long> getAborts();
+
+    public Map<String, RuleStats> getRules();
+
+    public LatencyHistogram.Snapshot getPhaseOne();
+
+    public LatencyHistogram.Snapshot getPhaseTwo();
+
+    public LatencyHistogram.Snapshot getEndToEnd();
+
+    /**
+     * @return the metrics of the production pipeline @see ProductionPipeline#report
+     */
+    public String getProductionMetrics();
+
+    /**
+     * @return the metrics of the decision log @see DecisionLog#report, "off" without it
+     */
+    public String getDecisionLogMetrics();
+
+    /**
+     * start a new interval for every latency of the bean, to follow them as they are now
+     */
+    public void resetLatencies();
+}
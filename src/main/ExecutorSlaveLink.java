@@ -4,24 +4,35 @@
  * 
  * A small class ExecutorSlaveLink
  * 
- * to prevent deadlock (between SlaveConsumer and Executor) during 2PC using Objects ObjectOutputStream, ObjectInputStream
+ * the in-memory channel between the Executor and one of its SlaveConsumer during 2PC
+ *  slaves always run in the JVM of their Executor, so the vote and the decision are simply
+ *  exchanged through two futures instead of a loopback socket and its object streams
+ * 
+ *  - vote : completed by the slave with "YES" or "NO" at the end of Phase I
+ *  - decision : completed by the Executor with "COMMIT" or "ABORT" for Phase II
+ *  - status : the answer of the machine to the reservation, set by the slave before it votes
+ *  - applied : completed by the slave once the decision reached its machine (true), or when it could not (false)
+ *  - refused : why the machine refused the commit (EXPIRED, UNKNOWN), null if it applied it (applied is then true)
+ * 
+ * all the links of one attempt share a ballot, each link is dropped in it once its vote is completed
+ *  so the Executor reads the votes in the order they arrive and can abort on the first "NO"
  */
 package main;
 
-import java.net.*;
-import java.io.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 
 class ExecutorSlaveLink {
-    final Socket socket;
-    final ObjectOutputStream out;
-    final ObjectInputStream in;
-
-    ExecutorSlaveLink(Socket socket) throws IOException {
-
-            this.socket = socket;
-            this.out = new ObjectOutputStream(socket.getOutputStream());
-            this.out.flush();
-            this.in = new ObjectInputStream(socket.getInputStream());
+    final CompletableFuture<String> vote = new CompletableFuture<>();
+    final CompletableFuture<String> decision = new CompletableFuture<>();
+    volatile Status status = Status.PROBLEM;
+    final CompletableFuture<Boolean> applied = new CompletableFuture<>();
+    volatile Status refused = null;
 
+    /**
+     * @param ballot queue shared by the links of one attempt, receiving each link exactly once, when it voted
+     */
+    ExecutorSlaveLink(BlockingQueue<ExecutorSlaveLink> ballot) {
+        this.vote.thenAccept(v -> ballot.add(this));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,143 @@
+/**
+ * @author Lyes Djemaa
+ * @version 1.0
+ * 
+ * The class Inventory
+ * 
+ * It keeps the units of the resources of a Machine in primitive arrays indexed by resource id @see ResourceRegistry
+ *  each resource has one cell holding its units available (high 32 bits) and its units reserved by Slaves (low 32 bits)
+ * 
+ * reserved := 0 means that no transaction is preparing on it
+ * reserved := k means that prepared transactions took k units out of the available ones (escrow),
+ *              they will be consumed on commit or given back on abort
+ * 
+ * Every operation is one compare-and-set on one cell, without any lock
+ */
+package main;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class Inventory {
+
+    /**
+     *  - cells : the counters of each resource, by id
+     *  - resources : the resource stored for each id, null if the machine does not store it
+     */
+    private final AtomicLongArray cells;
+    private final Resource[] resources;
+
+    /**
+     * @param declared the resources stored with their units available
+     */
+    public Inventory(Map<Resource, Integer> declared) {
+        int size = 0;
+        for (Resource R : declared.keySet()) {
+            size = Math.max(size, R.getId() + 1);
+        }
+
+        this.cells = new AtomicLongArray(size);
+        this.resources = new Resource[size];
+        for (Map.Entry<Resource, Integer> e : declared.entrySet()) {
+            int id = e.getKey().getId();
+            this.resources[id] = e.getKey();
+            this.cells.set(id, pack(e.getValue(), 0));
+        }
+    }
+
+    /**
+     * @return true if the resource is stored here
+     */
+    public boolean stores(Resource R) {
+        int id = R.getId();
+        return id < resources.length && resources[id] != null;
+    }
+
+    /**
+     * @return the resource stored with this id, null if none
+     */
+    public Resource resourceAt(int id) {
+        return (id < resources.length) ? resources[id] : null;
+    }
+
+    /**
+     * @return the ids are below this bound
+     */
+    public int capacity() { return resources.length; }
+
+    /**
+     * @return both counters of the resource read at the same instant, @see available and reserved to split it
+     */
+    public long cell(int id) { return cells.get(id); }
+
+    public static long pack(int available, int reserved) {
+        return ((long) available << 32) | (reserved & 0xffffffffL);
+    }
+    public static int available(long cell) { return (int) (cell >> 32); }
+    public static int reserved(long cell) { return (int) cell; }
+
+    /**
+     * move n units from available to reserved (Phase I)
+     * @return true if there were n units available
+     */
+    public boolean reserve(int id, int n) {
+        while (true) {
+            long current = cells.get(id);
+            int available = available(current);
+            if (available < n) {
+                return false;
+            }
+            if (cells.compareAndSet(id, current, pack(available - n, reserved(current) + n))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * drop n reserved units (Phase II, commit)
+     * @return false if less than n units were reserved, nothing is changed then
+     */
+    public boolean consume(int id, int n) {
+        while (true) {
+            long current = cells.get(id);
+            int reserved = reserved(current);
+            if (reserved < n) {
+                return false;
+            }
+            if (cells.compareAndSet(id, current, pack(available(current), reserved - n))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * give n reserved units back to the available ones (Phase II, abort)
+     * @return false if less than n units were reserved, nothing is changed then
+     */
+    public boolean abort(int id, int n) {
+        while (true) {
+            long current = cells.get(id);
+            int reserved = reserved(current);
+            if (reserved < n) {
+                return false;
+            }
+            if (cells.compareAndSet(id, current, pack(available(current) + n, reserved - n))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * add n available units, a produce never fails so a single atomic add is enough
+     */
+    public void produce(int id, int n) {
+        cells.addAndGet(id, (long) n << 32);
+    }
+
+    /**
+     * set both counters of a resource, only while the machine is rebuilt from its log @see WriteAheadLog
+     */
+    void restore(int id, int available, int reserved) {
+        cells.set(id, pack(available, reserved));
+    }
+}
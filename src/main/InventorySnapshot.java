@@ -0,0 +1,272 @@
+/**
+ * @author Lyes Djemaa
+ * @version 1.0
+ *
+ * The class InventorySnapshot
+ *
+ * It writes the inventory of a Machine to a compact binary file and reads it back,
+ *  so a machine restarts from its last state instead of a long list of --resource @see Machine#main
+ *
+ * <p>
+ * file := [int MAGIC][int VERSION][long taken (ms)][long position][long records][int count]
+ *         count * [long cell]                     the cells, packed like in the inventory @see Inventory
+ *         count * [short length][name in UTF-8]   the names, in the same order
+ *         [int held] held * ([long tx][int n] n * ([short length][name][int units]))
+ *         [int batches] batches * [long id] [int commits] commits * [long tx]
+ *  batches holds the highest batch of each sender, a file listing the last batches produced is read the same way
+ *  the cells come first and have a fixed size, they are read with one bulk copy from the mapped file
+ *  a file of VERSION 1 has neither position, records nor the sections after the names
+ *
+ * Without --wal the snapshot is taken while the machine serves : each cell is read atomically, so the units
+ *  of every resource are a state it really had, without stopping the RMI or NIO traffic
+ *  the leases are not part of it (position -1) : units reserved when the snapshot was taken are given back
+ *  to the available ones on load, as if the leases had expired
+ *
+ * With --wal it is a checkpoint of the log @see WriteAheadLog.Recovery : the state the records before
+ *  position rebuilt, reservations by transaction and recent batches and commits included. The machine starts
+ *  from it and only replays the records after position, the segments before it are deleted
+ *
+ * It is written to a temporary file renamed over the previous one, a crash leaves the old snapshot intact
+ * </p>
+ */
+package main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+public final class InventorySnapshot {
+
+    private static final int MAGIC = 0x494e5653; // "INVS"
+    private static final int VERSION = 2;
+    private static final int HEADER = 4 + 4 + 8 + 8 + 8 + 4;
+    private static final int HEADER_V1 = 4 + 4 + 8 + 4;
+
+    private InventorySnapshot() {}
+
+    /**
+     * write the inventory to file, replacing the previous snapshot at once
+     *
+     * @param inventory the inventory of the machine
+     * @param file where to write it
+     * @return the number of resources written
+     * @throws IOException if the file can't be written
+     */
+    public static int write(Inventory inventory, Path file) throws IOException {
+        int capacity = inventory.capacity();
+        long[] cells = new long[capacity];
+        byte[][] names = new byte[capacity][];
+        int count = 0;
+
+        for (int id = 0; id < capacity; ++id) {
+            Resource R = inventory.resourceAt(id);
+            if (R == null) continue;
+            cells[count] = inventory.cell(id);
+            names[count] = R.toString().getBytes(StandardCharsets.UTF_8);
+            ++count;
+        }
+        // three empty sections : no held, batches nor commits
+        write(file, -1, 0, cells, names, count, new byte[12]);
+        return count;
+    }
+
+    /**
+     * write a checkpoint of the log to file, replacing the previous snapshot at once
+     *
+     * @param state the state of the log at state.position @see WriteAheadLog#catchUp
+     * @param file where to write it
+     * @return the number of resources written
+     * @throws IOException if the file can't be written
+     */
+    public static int write(WriteAheadLog.Recovery state, Path file) throws IOException {
+        int count = state.units.size();
+        long[] cells = new long[count];
+        byte[][] names = new byte[count][];
+        int i = 0;
+        for (Map.Entry<Resource, int[]> e : state.units.entrySet()) {
+            cells[i] = Inventory.pack(e.getValue()[0], e.getValue()[1]);
+            names[i++] = e.getKey().toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        ByteArrayOutputStream sections = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(sections);
+        out.writeInt(state.held.size());
+        for (Map.Entry<Long, Map<Resource, Integer>> e : state.held.entrySet()) {
+            out.writeLong(e.getKey());
+            out.writeInt(e.getValue().size());
+            for (Map.Entry<Resource, Integer> unit : e.getValue().entrySet()) {
+                byte[] name = unit.getKey().toString().getBytes(StandardCharsets.UTF_8);
+                out.writeShort(name.length);
+                out.write(name);
+                out.writeInt(unit.getValue());
+            }
+        }
+        out.writeInt(state.batches.size());
+        for (long batch : state.batches.values()) out.writeLong(batch);
+        out.writeInt(state.commits.size());
+        for (long tx : state.commits) out.writeLong(tx);
+        out.flush();
+
+        write(file, state.position, state.records, cells, names, count, sections.toByteArray());
+        return count;
+    }
+
+    private static void write(Path file, long position, long records, long[] cells, byte[][] names, int count,
+                              byte[] sections) throws IOException {
+        long size = HEADER + sections.length;
+        for (int i = 0; i < count; ++i) {
+            size += 8 + 2 + names[i].length;
+        }
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            out.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis())
+               .putLong(position).putLong(records).putInt(count);
+            out.asLongBuffer().put(cells, 0, count);
+            out.position(HEADER + 8 * count);
+            for (int i = 0; i < count; ++i) {
+                out.putShort((short) names[i].length).put(names[i]);
+            }
+            out.put(sections);
+            out.force();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * read a snapshot, the units reserved are counted as available
+     *
+     * @param file the snapshot
+     * @return each resource with its units available
+     * @throws IOException if the file can't be read or is not a snapshot
+     */
+    public static Map<Resource, Integer> load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int header = header(in, file);
+            int count = in.getInt();
+
+            long[] cells = new long[count];
+            in.asLongBuffer().get(cells);
+            in.position(header + 8 * count);
+
+            Map<Resource, Integer> declared = new HashMap<>(count * 4 / 3 + 1);
+            byte[] name = new byte[256];
+            for (int i = 0; i < count; ++i) {
+                int length = in.getShort() & 0xffff;
+                if (length > name.length) name = new byte[length];
+                in.get(name, 0, length);
+                Resource R = new Resource(new String(name, 0, length, StandardCharsets.UTF_8));
+                declared.put(R, Inventory.available(cells[i]) + Inventory.reserved(cells[i]));
+            }
+            return declared;
+        }
+        catch (RuntimeException e) {
+            throw new IOException(file + " is a damaged inventory snapshot", e);
+        }
+    }
+
+    /**
+     * read the checkpoint of the log held by a snapshot, the log is then opened from it
+     *  @see WriteAheadLog#WriteAheadLog(Path, int, WriteAheadLog.Recovery)
+     *
+     * @param file the snapshot
+     * @return the state of the log at its position, null if the snapshot was taken without --wal
+     * @throws IOException if the file can't be read or is not a snapshot
+     */
+    public static WriteAheadLog.Recovery loadCheckpoint(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int header = header(in, file);
+            if (header == HEADER_V1 || in.getLong(16) < 0) {
+                return null;
+            }
+
+            WriteAheadLog.Recovery state = new WriteAheadLog.Recovery();
+            state.position = in.getLong(16);
+            state.records = in.getLong(24);
+            int count = in.getInt();
+            long[] cells = new long[count];
+            in.asLongBuffer().get(cells);
+            in.position(header + 8 * count);
+            for (int i = 0; i < count; ++i) {
+                state.units.put(name(in), new int[] { Inventory.available(cells[i]), Inventory.reserved(cells[i]) });
+            }
+
+            int held = in.getInt();
+            for (int i = 0; i < held; ++i) {
+                long tx = in.getLong();
+                Map<Resource, Integer> units = new HashMap<>();
+                for (int n = in.getInt(); n > 0; --n) {
+                    units.put(name(in), in.getInt());
+                }
+                state.held.put(tx, units);
+            }
+            for (int n = in.getInt(); n > 0; --n) {
+                state.produced(in.getLong());
+            }
+            for (int n = in.getInt(); n > 0; --n) {
+                state.commits.addLast(in.getLong());
+            }
+            return state;
+        }
+        catch (RuntimeException e) {
+            throw new IOException(file + " is a damaged inventory snapshot", e);
+        }
+    }
+
+    /**
+     * check the magic and the version, and move in to the count of resources
+     * @return the size of the header, which depends on the version
+     */
+    private static int header(ByteBuffer in, Path file) throws IOException {
+        if (in.remaining() < HEADER_V1 || in.getInt() != MAGIC) {
+            throw new IOException(file + " is not an inventory snapshot");
+        }
+        int version = in.getInt();
+        if (version != VERSION && version != 1) {
+            throw new IOException("Unknown snapshot version " + version + " in " + file);
+        }
+        in.getLong();
+        if (version == 1) {
+            return HEADER_V1;
+        }
+        in.getLong();
+        in.getLong();
+        return HEADER;
+    }
+
+    private static Resource name(ByteBuffer in) {
+        byte[] name = new byte[in.getShort() & 0xffff];
+        in.get(name);
+        return new Resource(new String(name, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return when the snapshot in file was taken (ms since the epoch)
+     */
+    public static long takenAt(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_V1);
+            channel.read(header, 0);
+            header.flip();
+            if (header.remaining() < HEADER_V1 || header.getInt() != MAGIC) {
+                throw new IOException(file + " is not an inventory snapshot");
+            }
+            header.getInt();
+            return header.getLong();
+        }
+    }
+}
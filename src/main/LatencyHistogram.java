@@ -0,0 +1,177 @@
+/**
+ * @author Lyes Djemaa
+ * @version 1.0
+ *
+ * The class LatencyHistogram
+ *
+ * It counts durations (ns) by bucket, cheap enough to be recorded on every call @see ExecutorMXBean @see MachineMXBean
+ *
+ * <p>
+ * bucket := the values below SUB are counted exactly, above each power of 2 is cut in SUB buckets of the same width,
+ *  so a value is known within 1/SUB (12.5 %) whatever its size, with 8 * 61 counters for every long
+ * record is one increment of the counter of the bucket, one add to the sum and a read of the max : no lock, no allocation
+ *
+ * A snapshot tells the durations recorded since the last reset (the interval, the start if none) and changes nothing :
+ *  any number of readers (jconsole, a scraper) see the same figures, only an explicit reset starts a new interval
+ *  to follow the latency as it is now. count gives the total since the start whatever the resets
+ *  the percentiles are the upper bound of the bucket they fall in, never below the real value
+ * </p>
+ */
+package main;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * the state at the last reset, guarded by the monitor of the histogram
+     */
+    private final long[] previous = new long[BUCKETS];
+    private long previousSum = 0;
+    private long previousAt = System.nanoTime();
+
+    /**
+     * the durations recorded since the last reset, in milliseconds
+     *  - count : number of durations recorded since the start
+     *  - ratePerSecond : durations recorded per second during the interval
+     *  - mean, p50, p90, p99, p999, max : of the durations of the interval, 0 if there was none
+     */
+    public static class Snapshot {
+        private final long count;
+        private final double ratePerSecond;
+        private final double meanMillis;
+        private final double p50Millis;
+        private final double p90Millis;
+        private final double p99Millis;
+        private final double p999Millis;
+        private final double maxMillis;
+
+        Snapshot(long count, double ratePerSecond, double meanMillis, double p50Millis, double p90Millis,
+                 double p99Millis, double p999Millis, double maxMillis) {
+            this.count = count;
+            this.ratePerSecond = ratePerSecond;
+            this.meanMillis = meanMillis;
+            this.p50Millis = p50Millis;
+            this.p90Millis = p90Millis;
+            this.p99Millis = p99Millis;
+            this.p999Millis = p999Millis;
+            this.maxMillis = maxMillis;
+        }
+
+        //getters
+        public long getCount() { return this.count; }
+        public double getRatePerSecond() { return this.ratePerSecond; }
+        public double getMeanMillis() { return this.meanMillis; }
+        public double getP50Millis() { return this.p50Millis; }
+        public double getP90Millis() { return this.p90Millis; }
+        public double getP99Millis() { return this.p99Millis; }
+        public double getP999Millis() { return this.p999Millis; }
+        public double getMaxMillis() { return this.maxMillis; }
+
+        @Override
+        public String toString() {
+            return String.format("%d (%.1f/s), mean %.3f ms, p50 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms",
+                                 count, ratePerSecond, meanMillis, p50Millis, p99Millis, p999Millis, maxMillis);
+        }
+    }
+
+    /**
+     * count one duration
+     * @param nanos the duration, a negative one counts as 0
+     */
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts.incrementAndGet(bucket(nanos));
+        sum.add(nanos);
+        long m = max.get();
+        while (nanos > m && !max.compareAndSet(m, nanos)) {
+            m = max.get();
+        }
+    }
+
+    /**
+     * @return the bucket counting value
+     */
+    static int bucket(long value) {
+        if (value < SUB) return (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        return (exp - SUB_BITS + 1) * SUB + (int) ((value >>> (exp - SUB_BITS)) & (SUB - 1));
+    }
+
+    /**
+     * @return the highest value counted by bucket i
+     */
+    static long upperBound(int i) {
+        if (i < SUB) return i;
+        int shift = i / SUB - 1;
+        long lowest = (long) (SUB + i % SUB) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * @return the durations recorded since the last reset, the histogram is left as it is
+     */
+    public synchronized Snapshot snapshot() {
+        long now = System.nanoTime();
+        long[] interval = new long[BUCKETS];
+        long n = 0;
+        long total = 0;
+        int highest = -1;
+        for (int i = 0; i < BUCKETS; ++i) {
+            long c = counts.get(i);
+            interval[i] = c - previous[i];
+            total += c;
+            n += interval[i];
+            if (interval[i] > 0) highest = i;
+        }
+        long intervalSum = sum.sum() - previousSum;
+        double seconds = (now - previousAt) / 1e9;
+
+        if (n == 0) return new Snapshot(total, 0, 0, 0, 0, 0, 0, 0);
+        // the highest bucket can't go beyond the largest value ever recorded
+        long ceiling = max.get();
+        return new Snapshot(total, (seconds > 0) ? n / seconds : 0, millis(intervalSum / n),
+                            millis(percentile(interval, n, 0.5, ceiling)), millis(percentile(interval, n, 0.9, ceiling)),
+                            millis(percentile(interval, n, 0.99, ceiling)), millis(percentile(interval, n, 0.999, ceiling)),
+                            millis(Math.min(upperBound(highest), ceiling)));
+    }
+
+    /**
+     * start a new interval : the next snapshots only tell the durations recorded from now
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKETS; ++i) {
+            previous[i] = counts.get(i);
+        }
+        previousSum = sum.sum();
+        previousAt = System.nanoTime();
+    }
+
+    /**
+     * @return the upper bound of the bucket holding the q-quantile of the n values counted in interval
+     */
+    private static long percentile(long[] interval, long n, double q, long ceiling) {
+        long rank = (long) Math.ceil(q * n);
+        long seen = 0;
+        for (int i = 0; i < interval.length; ++i) {
+            seen += interval[i];
+            if (seen >= rank && interval[i] > 0) return Math.min(upperBound(i), ceiling);
+        }
+        return ceiling;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * @author Lyes Djemaa
+ * @version 1.0
+ * 
+ * A small class Lease
+ * 
+ * the reservations a transaction holds on a Machine, with their deadline
+ *  if the transaction neither commits nor aborts before the deadline (its executor died, ...),
+ *  the machine gives the units back by itself @see LeaseWheel
+ * 
+ *  - owner : the id of the transaction @see Executor#nextTransaction
+ *  - deadline : in milliseconds, extended by every new reservation of the owner
+ *  - held : the units reserved, by resource
+ *  - closed : the lease was committed, aborted or expired, it can't hold anything anymore
+ *  - since : when the first reservation was made (ns), the hold time of the lease is counted from there
+ * 
+ * held and closed are guarded by the monitor of the lease, only its owner and the wheel touch it
+ */
+package main;
+
+import java.util.HashMap;
+import java.util.Map;
+
+class Lease {
+    final long owner;
+    volatile long deadline;
+    final Map<Resource, Integer> held = new HashMap<>();
+    boolean closed = false;
+    boolean scheduled = false;
+    final long since = System.nanoTime();
+
+    Lease(long owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * @return true if the lease holds at least n units of each resource of demand
+     */
+    boolean covers(Map<Resource, Integer> demand) {
+        for (Map.Entry<Resource, Integer> e : demand.entrySet()) {
+            Integer units = held.get(e.getKey());
+            if (units == null || units < e.getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void add(Map<Resource, Integer> demand) {
+        for (Map.Entry<Resource, Integer> e : demand.entrySet()) {
+            held.merge(e.getKey(), e.getValue(), Integer::sum);
+        }
+    }
+
+    void remove(Map<Resource, Integer> demand) {
+        for (Map.Entry<Resource, Integer> e : demand.entrySet()) {
+            held.computeIfPresent(e.getKey(), (R, units) -> (units > e.getValue()) ? units - e.getValue() : null);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Executor.txName(owner) + " " + held;
+    }
+}
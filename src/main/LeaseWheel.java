@@ -0,0 +1,81 @@
+/**
+ * @author Lyes Djemaa
+ * @version 1.0
+ * 
+ * A small class LeaseWheel
+ * 
+ * a hashed timer wheel expiring the leases of a Machine
+ *  a lease is put in the slot of its deadline, a thread visits one slot per tick
+ *  and hands the leases found there to the machine, which expires them or puts them back if they were extended
+ *  scheduling is one queue insertion, whatever the number of leases
+ */
+package main;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+class LeaseWheel implements Runnable {
+
+    private final long tickMillis;
+    private final List<Queue<Lease>> slots;
+    private final Consumer<Lease> onDeadline;
+    private volatile long currentTick;
+
+    /**
+     * start the thread of the wheel
+     * 
+     * @param tickMillis the time between two slots
+     * @param size the number of slots, a deadline further than size ticks goes round the wheel again
+     * @param onDeadline called with each lease whose slot is reached
+     */
+    LeaseWheel(long tickMillis, int size, Consumer<Lease> onDeadline) {
+        this.tickMillis = tickMillis;
+        this.onDeadline = onDeadline;
+        this.slots = new ArrayList<>(size);
+        for (int i = 0; i < size; ++i) {
+            this.slots.add(new ConcurrentLinkedQueue<>());
+        }
+        this.currentTick = System.currentTimeMillis() / tickMillis;
+
+        Thread t = new Thread(this, "lease-wheel");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * put the lease in the slot of its deadline, at least the next one
+     */
+    void schedule(Lease lease) {
+        long tick = Math.max(lease.deadline / tickMillis, currentTick + 1);
+        slots.get((int) (tick % slots.size())).add(lease);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                long wait = (currentTick + 1) * tickMillis - System.currentTimeMillis();
+                if (wait > 0) {
+                    Thread.sleep(wait);
+                }
+                long tick = ++currentTick;
+
+                Queue<Lease> slot = slots.get((int) (tick % slots.size()));
+                for (int n = slot.size(); n > 0; --n) {
+                    Lease lease = slot.poll();
+                    if (lease == null) break;
+                    onDeadline.accept(lease);
+                }
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            catch (Exception e) {
+                System.err.println("LeaseWheel: " + e);
+            }
+        }
+    }
+}
@@ -30,147 +30,424 @@ import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.stream.Collectors;
 import java.util.logging.*;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.lang.management.ManagementFactory;
+import javax.management.ObjectName;
 
-public class Machine implements MachineService {
+public class Machine implements MachineService, MachineMXBean {
 
 
     /**
-     *  a attribute mapping for each referenced resource, its units available
-     *  each key must have a unique dedicated ResourceState 
-     * 
+     * the units available and reserved of each resource stored, in arrays indexed by resource id @see Inventory
+     *  units reserved by a transaction are not available anymore until it aborts
+     */
+    private final Inventory inventory;
+
+    /**
+     * the recent changes of the inventory, followed by reactive executors @see ChangeFeed
      */
-    private final Map<Resource, Integer> resources = new ConcurrentHashMap<>();
+    private final ChangeFeed feed;
+    public static final int FEED_CAPACITY = 4096;
 
     /**
-     * an attribute mapping for each referenced resource a unique state
+     * the reservations waiting for units held by other transactions @see tryToWait
      */
-    private final Map<Resource, ResourceState> states = new ConcurrentHashMap<>();
+    private final WaitQueues waitQueues;
 
     /** 
      * a logger
     */
     private static final Logger logger = Logger.getLogger(Machine.class.getName());
+
+    /**
+     * the address of the NioMachineServer serving this machine, null if it is only reachable by RMI
+     */
+    private volatile InetSocketAddress nioEndpoint;
+
+    /**
+     * the leases of the transactions holding reservations, by transaction id @see Lease
+     *  leaseMillis : how long a reservation is kept without commit nor abort
+     *  wheel : expires the leases whose deadline passed
+     *  expiredLeases : number of leases expired since the start
+     */
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+    private final long leaseMillis;
+    private final LeaseWheel wheel;
+    private final AtomicLong expiredLeases = new AtomicLong();
+
+    /**
+     * default duration of a lease when --leaseMillis is not given
+     */
+    public static final long DEFAULT_LEASE_MILLIS = 30000;
+
+    /**
+     * default time between two snapshots (s) when --snapshotEvery is not given
+     */
+    public static final long DEFAULT_SNAPSHOT_EVERY = 60;
+
+    /**
+     * the log making the inventory durable, null if the machine only lives in memory @see WriteAheadLog
+     *  an answer is only sent once the records of the change are on the disk
+     */
+    private final WriteAheadLog wal;
+
+    /**
+     * the highest batch produced for each sender, with the position of its record in the log (-1 without log) @see produceAll
+     *  a sender is one run of an executor, the prefix of its ids (port, incarnation) @see Executor#idPrefix
+     *  its pipeline sends the batches of a machine one at a time, in the order of their ids, and retries each one
+     *  until it is applied : a batch not above the highest of its sender was applied already (retry after a lost
+     *  answer) and is not added twice, however many batches the other executors sent meanwhile
+     *  a batch sent by the recovery of an executor is not in that order, it has its own entry @see batchKey
+     *  bounded to RECENT_SENDERS, the senders quiet for the longest time are forgotten first
+     *  guarded by its own monitor, duplicateBatches counts the batches ignored
+     */
+    public static final int RECENT_SENDERS = 4096;
+    private final Map<Long, long[]> batchMarks = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, long[]> eldest) {
+            return size() > RECENT_SENDERS;
+        }
+    };
+    private final AtomicLong duplicateBatches = new AtomicLong();
+
+    /**
+     * @return the entry of the batch in batchMarks : the prefix of its sender, or the batch itself when it was sent
+     *         by a recovery @see Executor#RECOVERY_BATCH (a prefix is below 2^32, such an id above, they never meet)
+     */
+    static long batchKey(long batch) {
+        return ((batch & Executor.RECOVERY_BATCH) != 0) ? batch : batch >>> 32;
+    }
+
+    /**
+     * the last transactions committed here by commitAndProduce or consumeAll, with the position of their record
+     *  in the log (-1 without log) @see release
+     *  a commit sent again (retry after a lost answer, recovery of the executor) is found here and answered CONSUMED
+     *  without consuming twice. bounded to RECENT_COMMITS, guarded by its own monitor
+     */
+    public static final int RECENT_COMMITS = 4096;
+    private final Map<Long, Long> recentCommits = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+            return size() > RECENT_COMMITS;
+        }
+    };
+
+    /**
+     * the last transactions whose lease expired here, a commit coming after is answered EXPIRED @see onDeadline
+     *  in memory only and bounded to RECENT_EXPIRIES, far fewer than the commits : a transaction found neither here,
+     *  nor in recentCommits nor among the leases is answered UNKNOWN, and its executor keeps it in doubt
+     *  rather than taking a commit forgotten for an expiry. guarded by its own monitor
+     */
+    public static final int RECENT_EXPIRIES = 4096;
+    private final Map<Long, Boolean> recentExpiries = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > RECENT_EXPIRIES;
+        }
+    };
+
+    /**
+     * the thread applying every change when the machine runs with --writer single, null when the callers
+     *  apply their own changes (--writer shared) @see SingleWriter
+     *  tryToWait stays on its caller, it waits in the queues of the resources and only reserves with a CAS
+     */
+    private final SingleWriter writer;
+
+    /**
+     * the calls received by method of MachineService, the single-resource ones with their batch version
+     *  calls : the latency of each, indexed by ordinal @see MachineMXBean#getOperations
+     *  holds : how long the leases lived, recorded when they close
+     */
+    enum Operation {
+        TRY_TO_ALL("tryToAll"), TRY_TO_WAIT("tryToWait"), CONSUME_ALL("consumeAll"), ABORT_ALL("abortAll"),
+        COMMIT_AND_PRODUCE("commitAndProduce"), COMMIT_ONE_PHASE("commitOnePhase"),
+        PRODUCE("produce"), PRODUCE_ALL("produceAll"), QUANTITIES("quantities"), POLL_CHANGES("pollChanges");
+
+        final String method;
+
+        Operation(String method) {
+            this.method = method;
+        }
+    }
+    private final LatencyHistogram[] calls = new LatencyHistogram[Operation.values().length];
+    private final LatencyHistogram holds = new LatencyHistogram();
+
     /** 
      * Our constructor
      */
     public Machine(Map<Resource, Integer> toBeDeclared) {
-        for (Map.Entry<Resource, Integer> e : toBeDeclared.entrySet()) {
-            Resource R = e.getKey();
-            int quantity = e.getValue();
-            this.resources.put(R, quantity);
-            this.states.put(R, new ResourceState());
+        this(toBeDeclared, DEFAULT_LEASE_MILLIS);
+    }
+
+    /**
+     * @param leaseMillis how long a transaction may hold a reservation before it is given back
+     */
+    public Machine(Map<Resource, Integer> toBeDeclared, long leaseMillis) {
+        this(toBeDeclared, leaseMillis, null);
+    }
+
+    /**
+     * a machine recovered from its log : when the log already holds records, the resources declared
+     *  are ignored, the inventory and the reservations are the ones the log rebuilt
+     *  the transactions still holding units get a fresh lease, they commit or abort as if nothing happened
+     *
+     * @param wal the log of the machine, null for a machine only in memory
+     */
+    public Machine(Map<Resource, Integer> toBeDeclared, long leaseMillis, WriteAheadLog wal) {
+        this(toBeDeclared, leaseMillis, wal, false);
+    }
+
+    /**
+     * @param singleWriter true to apply every change on one writer thread, by batches @see SingleWriter
+     */
+    public Machine(Map<Resource, Integer> toBeDeclared, long leaseMillis, WriteAheadLog wal, boolean singleWriter) {
+        for (int i = 0; i < calls.length; ++i) {
+            calls[i] = new LatencyHistogram();
+        }
+        this.wal = wal;
+        this.writer = singleWriter ? new SingleWriter(SingleWriter.DEFAULT_CAPACITY, this::durable) : null;
+        WriteAheadLog.Recovery recovery = (wal == null) ? null : wal.getRecovery();
+        boolean recovered = recovery != null && !recovery.isEmpty();
+
+        Map<Resource, Integer> declared = toBeDeclared;
+        if (recovered) {
+            declared = new HashMap<>();
+            for (Resource R : recovery.units.keySet()) declared.put(R, 0);
+        }
+        this.inventory = new Inventory(declared);
+        this.feed = new ChangeFeed(this.inventory, FEED_CAPACITY);
+        this.waitQueues = new WaitQueues(this.inventory);
+        this.leaseMillis = leaseMillis;
+        this.wheel = new LeaseWheel(Math.max(1, Math.min(100, leaseMillis / 10)), 512,
+                                    singleWriter ? lease -> writer.execute(() -> onDeadline(lease)) : this::onDeadline);
+
+        if (recovered) {
+            for (Map.Entry<Resource, int[]> e : recovery.units.entrySet()) {
+                inventory.restore(e.getKey().getId(), e.getValue()[0], e.getValue()[1]);
+            }
+            for (Map.Entry<Long, Map<Resource, Integer>> e : recovery.held.entrySet()) {
+                attach(e.getKey(), e.getValue());
+            }
+            for (long batch : recovery.batches.values()) {
+                batchMarks.put(batchKey(batch), new long[] { batch, -1L });
+            }
+            for (long tx : recovery.commits) {
+                recentCommits.put(tx, -1L);
+            }
+            logger.info(() -> "Recovered from " + recovery.records + " records : " + getInventory()
+                                + ", " + recovery.held.size() + " transactions holding reservations");
+        }
+        else if (wal != null) {
+            // by chunks, a record holds a bounded number of resources
+            long lsn = -1;
+            Map<Resource, Integer> chunk = new HashMap<>();
+            for (Map.Entry<Resource, Integer> e : toBeDeclared.entrySet()) {
+                chunk.put(e.getKey(), e.getValue());
+                if (chunk.size() == DECLARE_CHUNK) {
+                    lsn = wal.append(WriteAheadLog.DECLARE, 0, chunk);
+                    chunk = new HashMap<>();
+                }
+            }
+            if (!chunk.isEmpty() || lsn < 0) {
+                lsn = wal.append(WriteAheadLog.DECLARE, 0, chunk);
+            }
+            durable(lsn);
         }
     }
+
+    /**
+     * number of resources declared by one record of the log
+     */
+    private static final int DECLARE_CHUNK = 1024;
     //getters
-    public Map<Resource,Integer> getResources() { return this.resources; }
-    public Map<Resource, ResourceState> getStates() { return this.states; }
+    public long getExpiredLeases() { return this.expiredLeases.get(); }
+    public int getActiveLeases() { return this.leases.size(); }
+    public boolean isDurable() { return this.wal != null; }
+    public boolean isSingleWriter() { return this.writer != null; }
+
+    /**
+     * @return the metrics of the writer (e.g. "52000 operations in 4100 batches (12.7 per batch, max 64)"), "off" without it
+     */
+    public String getWriterMetrics() {
+        return (writer == null) ? "off" : writer.report();
+    }
+    public long getDuplicateBatches() { return this.duplicateBatches.get(); }
+    public LatencyHistogram.Snapshot getReservationHoldTime() { return this.holds.snapshot(); }
+
+    /**
+     * @return the rate and latency of the calls of each method since the last reset @see LatencyHistogram
+     */
+    public Map<String, LatencyHistogram.Snapshot> getOperations() {
+        Map<String, LatencyHistogram.Snapshot> result = new LinkedHashMap<>();
+        for (Operation op : Operation.values()) {
+            result.put(op.method, calls[op.ordinal()].snapshot());
+        }
+        return result;
+    }
+
+    @Override
+    public void resetLatencies() {
+        for (LatencyHistogram h : calls) {
+            h.reset();
+        }
+        holds.reset();
+    }
+
+    /**
+     * count a call of op begun at start (ns), once : not again when the writer applies it for its caller
+     */
+    private void timed(Operation op, long start) {
+        if (writer == null || !writer.isWriter()) calls[op.ordinal()].record(System.nanoTime() - start);
+    }
+
+    /**
+     * @return the metrics of the log (e.g. "5200 records, 310 forces, 16.8 records per force, 2 segments"), "off" without log
+     */
+    public String getWalMetrics() {
+        if (wal == null) return "off";
+        return String.format("%d records, %d forces, %.1f records per force, %d segments",
+                             wal.getAppended(), wal.getForces(), wal.getRecordsPerForce(), wal.getSegments());
+    }
+
+    /**
+     * @return the metrics of the waiting reservations (e.g. "2 queued (max 5), 130 waits of 1.2 ms, 3 timeouts")
+     */
+    public String getWaitMetrics() {
+        return String.format("%d queued (max %d), %d waits of %.1f ms, %d timeouts",
+                             waitQueues.getQueued(), waitQueues.getLongestQueue(), waitQueues.getWaits(),
+                             waitQueues.getMeanWaitMillis(), waitQueues.getTimeouts());
+    }
+
+    /**
+     * @return a copy mapping each resource to its units available
+     */
+    public Map<Resource,Integer> getResources() {
+        Map<Resource, Integer> result = new HashMap<>();
+        for (int id = 0; id < inventory.capacity(); ++id) {
+            Resource R = inventory.resourceAt(id);
+            if (R != null) {
+                result.put(R, Inventory.available(inventory.cell(id)));
+            }
+        }
+        return result;
+    }
 
     /**
      * List all resources with its units of the machine 
      * @return a string listing what is mentionned above, (e.g. "(A,6) (C,12) ..."
+     *             units currently reserved are shown after a '+' (e.g. "(A,6+2)")
      */
     public String getInventory() {
-        return resources.entrySet()
-                        .stream()
-                        .map(e -> "(" + e.getKey() + "," + e.getValue() + ")")
-                        .collect(Collectors.joining(" "));
+        StringBuilder result = new StringBuilder();
+        for (int id = 0; id < inventory.capacity(); ++id) {
+            Resource R = inventory.resourceAt(id);
+            if (R == null) continue;
+
+            long cell = inventory.cell(id);
+            int reserved = Inventory.reserved(cell);
+            if (result.length() > 0) result.append(' ');
+            result.append('(').append(R).append(',').append(Inventory.available(cell));
+            if (reserved != 0) result.append('+').append(reserved);
+            result.append(')');
+        }
+        return result.toString();
     } 
 
-    /** method getStateR, return state of the given resource
+    /** method getReservedR, return the units of the given resource reserved by transactions in Phase I
      *  
-     * @param R the resource we want exclusivity
+     * @param R the resource we look at
      */
-    public int getStateR(Resource R) {
-        return (states.get(R)).getState();
+    public int getReservedR(Resource R) {
+        return Inventory.reserved(inventory.cell(idOf(R)));
     }
 
     /**
-     * method tryTo, part of the Phase I (Prepare)
-     * 
-     * @param R the resource we are trying to reserve
-     * @param n number of units requested by an executor 
-     * @return "reserved" if the resource is free and the requested amount is available
-     *             or "insufficient"/"locked" depending the situation
-     *     
+     * @return the id of R, to index the inventory
+     * @throws IllegalArgumentException if the machine does not store R
+     */
+    private int idOf(Resource R) {
+        if (!inventory.stores(R)) throw new IllegalArgumentException("Unknown resource " + R);
+        return R.getId();
+    }
+
+    /**
+     * method tryTo, part of the Phase I (Prepare), @see tryToAll
      */
     @Override
-    public String tryTo(Resource R, int n) {
-        ResourceState RS = states.get(R);
-        if (RS  == null) throw new IllegalArgumentException("Unknown resource " + R);
-    
-        (RS.getLock()).lock();
-        try {
-            if (RS.getState() == 1) {
-                return "locked";
-            }
+    public int tryTo(long tx, Resource R, int n) {
+        return tryToAll(tx, Map.of(R, n));
+    }
 
-            int available = resources.get(R);
-            if (available < n) {
-                return "insufficient";
+    /**
+     * method tryToWait, part of the Phase I (Prepare)
+     *  when the units of R are held by other transactions, the caller waits its turn in the FIFO queue of R
+     *  until they commit or abort, instead of getting LOCKED @see WaitQueues
+     *
+     * @param tx the transaction reserving
+     * @param R the resource
+     * @param n the units needed
+     * @param waitMillis the longest wait
+     * @return the code of RESERVED, INSUFFICIENT or TIMEOUT
+     */
+    @Override
+    public int tryToWait(long tx, Resource R, int n, long waitMillis) throws RemoteException {
+        long start = System.nanoTime();
+        int id = idOf(R);
+        try {
+            Status state = waitQueues.reserve(id, n, waitMillis);
+            if (state == Status.RESERVED) {
+                long lsn = log(WriteAheadLog.RESERVE, tx, Map.of(R, n));
+                attach(tx, Map.of(R, n));
+                durable(lsn);
             }
-
-            RS.setState(1);
-            return "reserved";
-        } 
-        catch (Exception e) {
-            System.err.println(e);
-        } 
+            return state.code();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for " + R, e);
+        }
         finally {
-            RS.getLock().unlock();
+            timed(Operation.TRY_TO_WAIT, start);
         }
+    }
 
-        //we never reach this part of the code but compiler insisted on a return statement was needed
-        return "problem";
+    /**
+     * reason why n units of the resource id can't be reserved
+     * @return LOCKED if the reservations of other transactions hold the missing units, INSUFFICIENT otherwise
+     */
+    private Status refusal(int id, int n) {
+        long cell = inventory.cell(id);
+        return (Inventory.available(cell) + Inventory.reserved(cell) >= n) ? Status.LOCKED : Status.INSUFFICIENT;
     }
     
     /**
-     * method consume, part of the Phase II(Comit or Abort)
-     * 
-     * we assert that param n <= units available
-     * 
-     * @param R, the resource we use 
-     * @param n, the number of unit we consumes
+     * method consume, part of the Phase II(Comit or Abort), @see consumeAll
      */
     @Override
-    public void consume(Resource R, int n) {
-        ResourceState RS = states.get(R);
-        if (RS == null) throw new IllegalArgumentException("Unknown resource " + R);
-    
-        RS.getLock().lock();
-        try {
-            int available = resources.get(R);
-            resources.replace(R, available - n);
-            RS.setState(0);
-        }
-        catch(Exception e) {
-            System.err.println(e);
-        } 
-        finally {
-            RS.getLock().unlock();
-        }
+    public boolean consume(long tx, Resource R, int n) {
+        return consumeAll(tx, Map.of(R, n));
     }
+
     /**
-     * method abort, part of the Phase II(Comit or Abort)
-     * ONLY IF a SlaveConsumer reserved R during Phase I, release the reservation 
-     * 
-     * @param R Resource we wanted to consume
+     * method abort, part of the Phase II(Comit or Abort), @see abortAll
      */
     @Override 
-    public void abort(Resource R) {
-        ResourceState RS = states.get(R);
-        if ( RS == null ) throw new IllegalArgumentException("Unknown resource " + R);
-
-        RS.getLock().lock();
-        RS.setState(0);
-        RS.getLock().unlock(); 
+    public boolean abort(long tx, Resource R, int n) {
+        return abortAll(tx, Map.of(R, n));
     }
 
 
@@ -187,37 +464,553 @@ public class Machine implements MachineService {
      */
     @Override
     public void produce(Resource R, int n) {
-        ResourceState RS = states.get(R);
-        if (RS == null) throw new IllegalArgumentException("Unknown resource " + R);
+        long start = System.nanoTime();
+        try {
+            if (onCaller()) {
+                writer.call(() -> { produce(R, n); return null; });
+                return;
+            }
+            int id = idOf(R);
+            long lsn = log(WriteAheadLog.PRODUCE, 0, Map.of(R, n));
+            inventory.produce(id, n);
+            feed.publish(id);
+            waitQueues.signal(id);
+            durable(lsn);
+        }
+        finally {
+            timed(Operation.PRODUCE, start);
+        }
+    }
+
+    /**
+     * Method produceAll
+     *
+     * add the outputs of many reactions at once, coalesced by an executor @see ProductionPipeline
+     *  the batch is logged as one record, so all its units cost one append and one wait for the disk
+     *
+     * A batch already applied is ignored, the executor retries a batch whose answer it did not get
+     *  the retry still waits for the record of the first call, the batch is durable when it returns
+     *
+     * @param batch the id of the batch, unique among all executors
+     * @param units each resource supplied with its units
+     * @return true if the units were added, false if the batch had been applied already
+     */
+    @Override
+    public boolean produceAll(long batch, Map<Resource, Integer> units) {
+        long start = System.nanoTime();
+        try {
+            if (onCaller()) return writer.call(() -> produceAll(batch, units));
+            int[] ids = new int[units.size()];
+            int[] counts = new int[units.size()];
+
+            // fail on an unknown resource before adding anything
+            int k = 0;
+            for (Map.Entry<Resource, Integer> e : units.entrySet()) {
+                ids[k] = idOf(e.getKey());
+                counts[k++] = e.getValue();
+            }
+
+            boolean seen;
+            long lsn;
+            synchronized (batchMarks) {
+                long[] mark = batchMarks.get(batchKey(batch));
+                seen = (mark != null && Long.compareUnsigned(batch, mark[0]) <= 0);
+                // the record of the highest batch comes after the one of this batch, it is durable once that one is
+                lsn = seen ? mark[1] : log(WriteAheadLog.PRODUCE, batch, units);
+                if (!seen) batchMarks.put(batchKey(batch), new long[] { batch, lsn });
+            }
+            if (seen) {
+                duplicateBatches.incrementAndGet();
+                durable(lsn);
+                return false;
+            }
+
+            for (int i = 0; i < ids.length; ++i) {
+                inventory.produce(ids[i], counts[i]);
+                feed.publish(ids[i]);
+                waitQueues.signal(ids[i]);
+            }
+            durable(lsn);
+            return true;
+        }
+        finally {
+            timed(Operation.PRODUCE_ALL, start);
+        }
+    }
+
+    /**
+     * method tryToAll, part of the Phase I (Prepare)
+     *
+     * The units are moved from the available counter to the reserved one (escrow),
+     *  so several transactions can reserve a share of the same resource at the same time
+     * Either every resource of the demand is reserved, or none of them
+     *  resources are reserved one after the other, if one fails the previous ones are given back
+     * The reservation is added to the lease of tx, which is extended by leaseMillis
+     *
+     * @param tx the transaction reserving
+     * @param demand each resource we are trying to reserve with the units requested
+     * @return the code of RESERVED if all resources were reserved
+     *             LOCKED if one was not, but would be once other transactions release their reservations
+     *             INSUFFICIENT otherwise
+     */
+    @Override
+    public int tryToAll(long tx, Map<Resource, Integer> demand) {
+        long start = System.nanoTime();
+        try {
+            if (onCaller()) return writer.call(() -> tryToAll(tx, demand));
+            int[] ids = new int[demand.size()];
+            int[] units = new int[demand.size()];
+
+            // fail on an unknown resource before reserving anything
+            int k = 0;
+            for (Map.Entry<Resource, Integer> e : demand.entrySet()) {
+                ids[k] = idOf(e.getKey());
+                units[k++] = e.getValue();
+            }
+
+            for (int i = 0; i < ids.length; ++i) {
+                if (!inventory.reserve(ids[i], units[i])) {
+                    for (int j = 0; j < i; ++j) {
+                        inventory.abort(ids[j], units[j]);
+                        // a waiter may have been refused during the hold, it must see the units back
+                        feed.publish(ids[j]);
+                        waitQueues.signal(ids[j]);
+                    }
+                    return refusal(ids[i], units[i]).code();
+                }
+            }
+
+            long lsn = log(WriteAheadLog.RESERVE, tx, demand);
+            attach(tx, demand);
+            durable(lsn);
+            return Status.RESERVED.code();
+        }
+        finally {
+            timed(Operation.TRY_TO_ALL, start);
+        }
+    }
+
+    /**
+     * @return true if the change must be handed to the single writer, false if the current thread applies it
+     */
+    private boolean onCaller() {
+        return writer != null && !writer.isWriter();
+    }
+
+    /**
+     * append a record to the log, before giving units (produce, abort) or after taking them (reserve)
+     *  so that the log never hands out units it does not know about
+     * @return the position to wait for @see durable, -1 without log
+     */
+    private long log(byte type, long tx, Map<Resource, Integer> entries) {
+        return (wal == null) ? -1 : wal.append(type, tx, entries);
+    }
+
+    /**
+     * append one record of units taken together with the outputs produced by the same call
+     *  it is appended after taking the units and before giving the outputs, so both rules hold
+     */
+    private long log(byte type, long tx, Map<Resource, Integer> entries, Map<Resource, Integer> outputs) {
+        return (wal == null) ? -1 : wal.append(type, tx, entries, outputs);
+    }
+
+    /**
+     * @return the ids of the resources of units, an unknown resource fails before anything changed
+     */
+    private int[] idsOf(Map<Resource, Integer> units) {
+        int[] ids = new int[units.size()];
+        int k = 0;
+        for (Resource R : units.keySet()) {
+            ids[k++] = idOf(R);
+        }
+        return ids;
+    }
+
+    /**
+     * add the outputs of a commit, already logged with it
+     */
+    private void give(int[] ids, Map<Resource, Integer> outputs) {
+        int k = 0;
+        for (int n : outputs.values()) {
+            int id = ids[k++];
+            inventory.produce(id, n);
+            feed.publish(id);
+            waitQueues.signal(id);
+        }
+    }
+
+    /**
+     * wait until the record ending at lsn is on the disk (shared with the records of the other callers)
+     *  never called while holding a lease, the others can go on meanwhile
+     *  on the single writer, the caller of the operation waits for it instead @see SingleWriter#defer
+     */
+    private void durable(long lsn) {
+        if (lsn < 0) return;
+        if (writer != null && writer.isWriter()) {
+            writer.defer(lsn);
+            return;
+        }
+        try {
+            wal.await(lsn);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * method commitOnePhase, the 2PC of a reaction whose inputs all live on this machine, in one call
+     *
+     * Every resource of the demand is reserved like in tryToAll, then consumed at once : the units go straight
+     *  from available to gone, no lease is taken and no other transaction can see them reserved for long
+     * Either every resource is consumed, or none of them
+     * The outputs of the reaction stored here are added by the same call, once the inputs are consumed
+     *
+     * @param tx the transaction consuming, only for the log
+     * @param demand each resource to consume with its units
+     * @param outputs the resources produced here by the reaction with their units, may be empty
+     * @return the code of CONSUMED if all resources were consumed (and the outputs added)
+     *             LOCKED if one was not, but would be once other transactions release their reservations
+     *             INSUFFICIENT otherwise
+     */
+    @Override
+    public int commitOnePhase(long tx, Map<Resource, Integer> demand, Map<Resource, Integer> outputs) {
+        long start = System.nanoTime();
+        try {
+            if (onCaller()) return writer.call(() -> commitOnePhase(tx, demand, outputs));
+            int[] ids = new int[demand.size()];
+            int[] units = new int[demand.size()];
+            int[] produced = idsOf(outputs);
+
+            int k = 0;
+            for (Map.Entry<Resource, Integer> e : demand.entrySet()) {
+                ids[k] = idOf(e.getKey());
+                units[k++] = e.getValue();
+            }
+
+            for (int i = 0; i < ids.length; ++i) {
+                if (!inventory.reserve(ids[i], units[i])) {
+                    for (int j = 0; j < i; ++j) {
+                        inventory.abort(ids[j], units[j]);
+                        // a waiter may have been refused during the hold, it must see the units back
+                        feed.publish(ids[j]);
+                        waitQueues.signal(ids[j]);
+                    }
+                    return refusal(ids[i], units[i]).code();
+                }
+            }
 
-        RS.getLock().lock();
+            long lsn = log(WriteAheadLog.TAKE, tx, demand, outputs);
+            for (int i = 0; i < ids.length; ++i) {
+                inventory.consume(ids[i], units[i]);
+                feed.publish(ids[i]);
+                waitQueues.signal(ids[i]);
+            }
+            give(produced, outputs);
+            durable(lsn);
+            return Status.CONSUMED.code();
+        }
+        finally {
+            timed(Operation.COMMIT_ONE_PHASE, start);
+        }
+    }
+
+    /**
+     * put units just reserved for tx in its lease
+     *  nobody can release these units before they are in the lease, so they can be attached afterwards
+     */
+    private void attach(long tx, Map<Resource, Integer> demand) {
+        while (true) {
+            Lease lease = leases.computeIfAbsent(tx, Lease::new);
+            synchronized (lease) {
+                if (lease.closed) {
+                    continue; // it just expired, a new one is needed
+                }
+                lease.add(demand);
+                lease.deadline = System.currentTimeMillis() + leaseMillis;
+                if (!lease.scheduled) {
+                    lease.scheduled = true;
+                    wheel.schedule(lease);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * method consumeAll, part of the Phase II (Commit)
+     *
+     * the units were already taken out of the available ones by tryToAll, they are simply dropped from the reserved ones
+     *
+     * @param tx the transaction committing
+     * @param demand each resource reserved by tryToAll with the units we consume
+     * @return true if the commit is applied (now or by an earlier call), false if tx does not hold these
+     *             reservations (its lease expired, or the machine has no trace of it), nothing is consumed then
+     *             @see commitAndProduce, which tells both apart
+     */
+    @Override
+    public boolean consumeAll(long tx, Map<Resource, Integer> demand) {
+        long start = System.nanoTime();
         try {
+            return release(tx, demand, true, Map.of());
+        }
+        finally {
+            timed(Operation.CONSUME_ALL, start);
+        }
+    }
 
-            int available = resources.get(R);
-            resources.replace(R, available + n);
+    /**
+     * method commitAndProduce, the Phase II (Commit) of this machine in one call
+     *
+     * the demand is consumed like in consumeAll and the outputs of the reaction stored here are added at once,
+     *  under the lease of tx and in one record of the log : nobody sees the inputs gone and the outputs missing
+     * Either both happen, or none of them : a transaction that does not hold the demand anymore produces nothing
+     *  a commit already applied is answered CONSUMED again without doing anything, so the call can be sent again safely
+     *
+     * @param tx the transaction committing
+     * @param demand each resource reserved by tryToAll with the units we consume
+     * @param outputs the resources produced here by the reaction with their units, may be empty
+     * @return the code of CONSUMED if the commit is applied (now or by an earlier call), of EXPIRED if the lease
+     *             of tx expired before, nothing is consumed nor produced then, of UNKNOWN if the machine has
+     *             no trace of tx anymore, it can't tell whether the commit was applied @see Status
+     */
+    @Override
+    public int commitAndProduce(long tx, Map<Resource, Integer> demand, Map<Resource, Integer> outputs) {
+        long start = System.nanoTime();
+        try {
+            if (release(tx, demand, true, outputs)) return Status.CONSUMED.code();
+            boolean expired;
+            synchronized (recentExpiries) {
+                expired = recentExpiries.containsKey(tx);
+            }
+            return (expired ? Status.EXPIRED : Status.UNKNOWN).code();
+        }
+        finally {
+            timed(Operation.COMMIT_AND_PRODUCE, start);
+        }
+    }
 
-        } finally {
-            RS.getLock().unlock();
+    /**
+     * method abortAll, part of the Phase II (Abort)
+     * ONLY IF tryToAll reserved the demand during Phase I, give the units reserved back to the available ones
+     *
+     * @param tx the transaction aborting
+     * @param demand the resources we wanted to consume with the units reserved
+     * @return false if tx does not hold these reservations (its lease expired), nothing is done then
+     */
+    @Override
+    public boolean abortAll(long tx, Map<Resource, Integer> demand) {
+        long start = System.nanoTime();
+        try {
+            return release(tx, demand, false, Map.of());
+        }
+        finally {
+            timed(Operation.ABORT_ALL, start);
         }
     }
 
+    /**
+     * take the demand out of the lease of tx, then consume it (and add the outputs) or give it back
+     *  a commit is remembered in recentCommits under the lock of the lease, before the lease is closed,
+     *  so a commit sent again finds either the lease or its trace
+     * @return false if the lease of tx does not hold the demand and tx was not committed here
+     */
+    private boolean release(long tx, Map<Resource, Integer> demand, boolean consume, Map<Resource, Integer> outputs) {
+        if (onCaller()) return writer.call(() -> release(tx, demand, consume, outputs));
+        int[] produced = idsOf(outputs);
+        long lsn;
+        Lease lease = leases.get(tx);
+        if (lease == null) {
+            if (consume && committed(tx)) return true;
+            logger.warning(() -> "No lease for " + Executor.txName(tx) + ", " + demand + " was not " 
+                                    + (consume ? "consumed" : "aborted"));
+            return false;
+        }
+
+        synchronized (lease) {
+            if (lease.closed || !lease.covers(demand)) {
+                if (consume && committed(tx)) return true;
+                logger.warning(() -> "Lease of " + Executor.txName(tx) + " does not hold " + demand);
+                return false;
+            }
+
+            lsn = log(consume ? WriteAheadLog.CONSUME : WriteAheadLog.ABORT, tx, demand, outputs);
+            for (Map.Entry<Resource, Integer> e : demand.entrySet()) {
+                int id = e.getKey().getId();
+                if (consume) inventory.consume(id, e.getValue());
+                else inventory.abort(id, e.getValue());
+                feed.publish(id);
+                waitQueues.signal(id);
+            }
+            give(produced, outputs);
+            if (consume) {
+                synchronized (recentCommits) {
+                    recentCommits.put(tx, lsn);
+                }
+            }
+
+            lease.remove(demand);
+            if (lease.held.isEmpty()) {
+                lease.closed = true;
+                leases.remove(tx, lease);
+                holds.record(System.nanoTime() - lease.since);
+            }
+        }
+        durable(lsn);
+        return true;
+    }
+
+    /**
+     * @return true if tx was committed here recently, once its record is on the disk @see recentCommits
+     */
+    private boolean committed(long tx) {
+        Long lsn;
+        synchronized (recentCommits) {
+            lsn = recentCommits.get(tx);
+        }
+        if (lsn == null) return false;
+        logger.info(() -> Executor.txName(tx) + " already committed, nothing to do");
+        durable(lsn);
+        return true;
+    }
+
+    /**
+     * called by the wheel when the slot of a lease is reached
+     *  if its deadline passed, the units it holds are given back, otherwise it is scheduled again
+     */
+    private void onDeadline(Lease lease) {
+        synchronized (lease) {
+            if (lease.closed) {
+                return;
+            }
+            if (lease.deadline > System.currentTimeMillis()) {
+                wheel.schedule(lease);
+                return;
+            }
+
+            // nobody waits for this answer, the record is forced with the next ones
+            log(WriteAheadLog.ABORT, lease.owner, lease.held);
+            for (Map.Entry<Resource, Integer> e : lease.held.entrySet()) {
+                inventory.abort(e.getKey().getId(), e.getValue());
+                feed.publish(e.getKey().getId());
+                waitQueues.signal(e.getKey().getId());
+            }
+            // before the lease is gone, so a commit coming after finds one or the other
+            synchronized (recentExpiries) {
+                recentExpiries.put(lease.owner, true);
+            }
+            lease.closed = true;
+            leases.remove(lease.owner, lease);
+            holds.record(System.nanoTime() - lease.since);
+        }
+        expiredLeases.incrementAndGet();
+        logger.info(() -> "Lease expired, reservations given back : " + lease);
+    }
+
+    /**
+     * method that reads the units of several resources at once, nothing is reserved
+     * 
+     * @param resources the resources to read
+     * @return the cell of each resource (available and reserved units @see Inventory), -1 if it is not stored here
+     */
+    @Override
+    public long[] quantities(Resource[] resources) {
+        long start = System.nanoTime();
+        try {
+            long[] cells = new long[resources.length];
+            for (int i = 0; i < resources.length; ++i) {
+                cells[i] = inventory.stores(resources[i]) ? inventory.cell(resources[i].getId()) : -1L;
+            }
+            return cells;
+        }
+        finally {
+            timed(Operation.QUANTITIES, start);
+        }
+    }
+
+    /**
+     * method that follows the changes of the inventory, a long-poll
+     * 
+     * @param cursor the next of the previous answer, -1 for the first poll
+     * @param waitMillis how long to wait when nothing changed since cursor
+     * @return the resources changed since cursor with their units @see Changes
+     */
+    @Override
+    public Changes pollChanges(long cursor, long waitMillis) throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            return feed.poll(cursor, waitMillis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for changes", e);
+        }
+        finally {
+            timed(Operation.POLL_CHANGES, start);
+        }
+    }
 
     /**
      * method that enumerate the resource it can store
      * 
-     * @return a string list all resource present (available or not) (e.g. "A,C,D")
+     * @return all resources present (available or not) (e.g. [A, C, D])
      */
     @Override
-    public String enumResource() {
-        String result = resources.keySet()
-                                .stream()
-                                .map(Object::toString)
-                                .collect(Collectors.joining(","));
-        return result;
+    public Directory enumResource() {
+        List<Resource> stored = new ArrayList<>();
+        for (int id = 0; id < inventory.capacity(); ++id) {
+            if (inventory.resourceAt(id) != null) stored.add(inventory.resourceAt(id));
+        }
+        return new Directory(stored.toArray(new Resource[0]));
     }
 
 
 
+    /**
+     * write a snapshot of the inventory, the machine keeps serving meanwhile @see InventorySnapshot
+     *  with a log, the snapshot is a checkpoint of the log : the previous one (read back from file) caught up
+     *  with the records on the disk since, so it is exactly the state the log had at its position,
+     *  then the segments before that position are deleted @see WriteAheadLog#truncate
+     *
+     * @param file where to write it, the previous snapshot is replaced
+     * @return the number of resources written
+     * @throws IOException if the file can't be written, or it holds a checkpoint of another log
+     */
+    public int snapshot(Path file) throws IOException {
+        if (wal == null) return InventorySnapshot.write(inventory, file);
+
+        WriteAheadLog.Recovery state = Files.exists(file) ? InventorySnapshot.loadCheckpoint(file) : null;
+        if (state == null) state = new WriteAheadLog.Recovery();
+        try {
+            wal.catchUp(state);
+        }
+        catch (IllegalStateException e) {
+            throw new IOException("The snapshot " + file + " is not a checkpoint of the log of this machine", e);
+        }
+        int count = InventorySnapshot.write(state, file);
+        int dropped = wal.truncate(state.position);
+        if (dropped > 0) logger.info(() -> dropped + " segments of the log covered by the snapshot deleted");
+        return count;
+    }
+
+    /**
+     * start a NioMachineServer for this machine, executors using --transport nio will reach it there
+     * 
+     * @param port the port to listen on
+     * @param threads the number of selector threads
+     * @throws IOException if the port can't be bound
+     */
+    public void serveNio(int port, int threads) throws IOException {
+        NioMachineServer server = new NioMachineServer(this, port, threads);
+        String host = System.getProperty("java.rmi.server.hostname", InetAddress.getLocalHost().getHostAddress());
+        this.nioEndpoint = new InetSocketAddress(host, server.getPort());
+    }
+
+    @Override
+    public InetSocketAddress nioEndpoint() {
+        return this.nioEndpoint;
+    }
+
     /**
      * The main method of this class, instance a Machine and its resource
      * @param args an array of string indicating each Resource the machine 
@@ -229,7 +1022,18 @@ public class Machine implements MachineService {
             String id = parseID(args);
             int id_numeric = Integer.parseInt(id);
 
-            Machine M = new Machine(parsePairs(args));
+            String walDir = parseWal(args);
+            String snapshotFile = parseSnapshot(args);
+            WriteAheadLog wal = (walDir == null) ? null
+                                : new WriteAheadLog(Paths.get(walDir), WriteAheadLog.DEFAULT_SEGMENT_SIZE,
+                                                    checkpoint(snapshotFile));
+            boolean singleWriter = "single".equals(parseWriter(args));
+            Machine M = new Machine(declared(args, snapshotFile, wal), parseLeaseMillis(args), wal, singleWriter);
+
+            int nioPort = parseNioPort(args);
+            if (nioPort >= 0) {
+                M.serveNio(nioPort, parseNioThreads(args));
+            }
 
             MachineService stub =
                     (MachineService) UnicastRemoteObject.exportObject(M, 0);
@@ -248,12 +1052,47 @@ public class Machine implements MachineService {
 
             configureLogging(id_numeric);
 
+            ManagementFactory.getPlatformMBeanServer()
+                             .registerMBean(M, new ObjectName("main:type=Machine,id=" + id_numeric));
+
+            if (snapshotFile != null) {
+                long every = parseSnapshotEvery(args);
+                Thread snapshots = new Thread(() -> {
+                    try {
+                        while (true) {
+                            TimeUnit.SECONDS.sleep(every);
+                            long start = System.nanoTime();
+                            try {
+                                int count = M.snapshot(Paths.get(snapshotFile));
+                                logger.info(() -> "Snapshot of " + count + " resources written to " + snapshotFile
+                                                    + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+                            }
+                            catch (IOException | RuntimeException e) {
+                                // the next one may succeed (disk freed), and with --wal it is what truncates the log
+                                logger.warning(() -> "Could not write the snapshot " + snapshotFile + " : " + e);
+                            }
+                        }
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }, "snapshot");
+                snapshots.setDaemon(true);
+                snapshots.start();
+            }
+
             logger.info(() -> "Machine exported with id " + id_numeric
-                                + " and Resources: " + M.enumResource());
+                                + " and Resources: " + M.enumResource()
+                                + ((M.nioEndpoint() == null) ? "" : " NIO on " + M.nioEndpoint()));
 
             while(true) {
                 logger.info(() -> "Machine"+id 
-                                + " maintaining : " + M.getInventory());
+                                + " maintaining : " + M.getInventory()
+                                + " leases : " + M.getActiveLeases() + " active, " + M.getExpiredLeases() + " expired"
+                                + " waits : " + M.getWaitMetrics()
+                                + " wal : " + M.getWalMetrics()
+                                + " writer : " + M.getWriterMetrics()
+                                + " batches : " + M.getDuplicateBatches() + " retried");
                 TimeUnit.SECONDS.sleep(10);
             }
 
@@ -343,6 +1182,215 @@ public class Machine implements MachineService {
 
     }
 
+    /**
+     * method that extract the optional leaseMillis parameter from args
+     *  the time a transaction may hold a reservation without commit nor abort
+     * @param args the argument of main
+     * @return the duration of a lease in milliseconds, DEFAULT_LEASE_MILLIS if not given
+     * @throws IllegalArgumentException
+     */
+    public static long parseLeaseMillis(String[] args) {
+
+        for (int i = 0; i < args.length; ++i) {
+            if ("--leaseMillis".equals(args[i])) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing args after --leaseMillis");
+                }
+                long millis = Long.parseLong(args[++i]);
+                if (millis < 1) throw new IllegalArgumentException("--leaseMillis must be positive");
+                return millis;
+            }
+        }
+        return DEFAULT_LEASE_MILLIS;
+
+    }
+
+    /**
+     * where the write-ahead log of a machine starts from
+     *
+     * @param snapshotFile the --snapshot, may be null
+     * @return the checkpoint of the log held by the snapshot, a new Recovery to replay the log from its start
+     *             when there is no snapshot or it was taken without --wal
+     * @throws IOException if the snapshot can't be read
+     */
+    private static WriteAheadLog.Recovery checkpoint(String snapshotFile) throws IOException {
+        if (snapshotFile == null || !Files.exists(Paths.get(snapshotFile))) {
+            return new WriteAheadLog.Recovery();
+        }
+        WriteAheadLog.Recovery checkpoint = InventorySnapshot.loadCheckpoint(Paths.get(snapshotFile));
+        if (checkpoint == null) {
+            return new WriteAheadLog.Recovery();
+        }
+        logger.info(() -> "Starting the log from the checkpoint of " + snapshotFile + " (" + checkpoint.records
+                            + " records, position " + checkpoint.position + ")");
+        return checkpoint;
+    }
+
+    /**
+     * the resources a machine starts with
+     *  from the snapshot when its file exists (the --resource not in it are added), from the --resource otherwise
+     *  a write-ahead log holding records wins over both : the snapshot was its checkpoint and the log started
+     *  from it @see checkpoint, or it was taken without --wal and is not read
+     *
+     * @param args the argument of main
+     * @param snapshotFile the --snapshot, may be null
+     * @param wal the log of the machine, may be null
+     * @return each resource with its units available
+     * @throws IOException if the snapshot can't be read
+     */
+    private static Map<Resource, Integer> declared(String[] args, String snapshotFile, WriteAheadLog wal) throws IOException {
+        Map<Resource, Integer> pairs = parsePairs(args);
+        if (snapshotFile == null || !Files.exists(Paths.get(snapshotFile))
+                || (wal != null && !wal.getRecovery().isEmpty())) {
+            return pairs;
+        }
+
+        long start = System.nanoTime();
+        Path file = Paths.get(snapshotFile);
+        Map<Resource, Integer> declared = InventorySnapshot.load(file);
+        for (Map.Entry<Resource, Integer> e : pairs.entrySet()) {
+            declared.putIfAbsent(e.getKey(), e.getValue());
+        }
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        java.util.Date taken = new java.util.Date(InventorySnapshot.takenAt(file));
+        logger.info(() -> "Loaded " + declared.size() + " resources from the snapshot " + snapshotFile
+                            + " taken at " + taken + " in " + millis + " ms");
+        return declared;
+    }
+
+    /**
+     * method that extract the optional snapshot parameter from args
+     *  the file the machine starts from when it exists, and where its inventory is written every --snapshotEvery seconds
+     * @param args the argument of main
+     * @return the path of the snapshot, null if the machine takes none
+     * @throws IllegalArgumentException
+     */
+    public static String parseSnapshot(String[] args) {
+
+        for (int i = 0; i < args.length; ++i) {
+            if ("--snapshot".equals(args[i])) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing args after --snapshot");
+                }
+                return args[++i];
+            }
+        }
+        return null;
+
+    }
+
+    /**
+     * method that extract the optional writer parameter from args
+     *  "shared" (default) : each RMI or NIO thread applies its own request
+     *  "single" : the requests are queued and applied by one writer thread, by batches @see SingleWriter
+     * @param args the argument of main
+     * @return the kind of writer
+     * @throws IllegalArgumentException
+     */
+    public static String parseWriter(String[] args) {
+
+        for (int i = 0; i < args.length; ++i) {
+            if ("--writer".equals(args[i])) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing args after --writer");
+                }
+                String writer = args[++i];
+                if (!"shared".equals(writer) && !"single".equals(writer)) {
+                    throw new IllegalArgumentException("--writer must be shared or single");
+                }
+                return writer;
+            }
+        }
+        return "shared";
+
+    }
+
+    /**
+     * method that extract the optional snapshotEvery parameter from args
+     * @param args the argument of main
+     * @return the time between two snapshots in seconds, DEFAULT_SNAPSHOT_EVERY if not given
+     * @throws IllegalArgumentException
+     */
+    public static long parseSnapshotEvery(String[] args) {
+
+        for (int i = 0; i < args.length; ++i) {
+            if ("--snapshotEvery".equals(args[i])) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing args after --snapshotEvery");
+                }
+                long seconds = Long.parseLong(args[++i]);
+                if (seconds < 1) throw new IllegalArgumentException("--snapshotEvery must be positive");
+                return seconds;
+            }
+        }
+        return DEFAULT_SNAPSHOT_EVERY;
+
+    }
+
+    /**
+     * method that extract the optional wal parameter from args
+     *  the directory of the write-ahead log, the machine is rebuilt from it when it is not empty
+     * @param args the argument of main
+     * @return the directory, null if the machine only lives in memory
+     * @throws IllegalArgumentException
+     */
+    public static String parseWal(String[] args) {
+
+        for (int i = 0; i < args.length; ++i) {
+            if ("--wal".equals(args[i])) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing args after --wal");
+                }
+                return args[++i];
+            }
+        }
+        return null;
+
+    }
+
+    /**
+     * method that extract the optional nioPort parameter from args
+     *  when given, the machine is also served by a NioMachineServer on this port (0 for any free port)
+     * @param args the argument of main
+     * @return the port, -1 if the machine is only reachable by RMI
+     * @throws IllegalArgumentException
+     */
+    public static int parseNioPort(String[] args) {
+
+        for (int i = 0; i < args.length; ++i) {
+            if ("--nioPort".equals(args[i])) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing args after --nioPort");
+                }
+                return Integer.parseInt(args[++i]);
+            }
+        }
+        return -1;
+
+    }
+
+    /**
+     * method that extract the optional nioThreads parameter from args
+     * @param args the argument of main
+     * @return the number of selector threads of the NioMachineServer, 2 by default
+     * @throws IllegalArgumentException
+     */
+    public static int parseNioThreads(String[] args) {
+
+        for (int i = 0; i < args.length; ++i) {
+            if ("--nioThreads".equals(args[i])) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing args after --nioThreads");
+                }
+                int threads = Integer.parseInt(args[++i]);
+                if (threads < 1) throw new IllegalArgumentException("--nioThreads must be positive");
+                return threads;
+            }
+        }
+        return 2;
+
+    }
+
     /** 
      * A parsing method to retrieve all resource and their quantity
      *  then compute the associated map
@@ -406,6 +1454,8 @@ public class Machine implements MachineService {
 
         System.err.println("Usage :");
         System.err.println(" java main.Machine --registry <address> --portRegistry <value> --id <number> --resource \"(A,3)\" --resource \"(B,5)\" ...");
+        System.err.println(" options : [--leaseMillis <number>] [--nioPort <number>] [--nioThreads <number>] [--wal <directory>]");
+        System.err.println("           [--snapshot <file>] [--snapshotEvery <seconds>] [--writer shared|single]");
     }
 
     /**
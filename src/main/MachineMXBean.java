@@ -0,0 +1,47 @@
+/**
+ * @author Lyes Djemaa
+ * @version 1.0
+ *
+ * The interface MachineMXBean
+ *
+ * What a Machine shows through JMX, registered by Machine.main as main:type=Machine,id=<id>
+ *  to watch it live with jconsole (or any JMX client) instead of reading its log
+ *
+ *  - operations : the calls received, by method of MachineService, with their rate and latency
+ *                 (tryTo counts as tryToAll, consume as consumeAll, abort as abortAll) @see Machine.Operation
+ *                 with --writer single a call waits for the writer, the wait is in its latency
+ *  - reservationHoldTime : how long the leases lived, from the first reservation of a transaction
+ *                          until it committed, aborted or expired @see Lease
+ *  - the others are the figures the machine logs every 10 s
+ * the latencies are the ones of the interval since the last resetLatencies (since the start without one),
+ *  reading them changes nothing, so several clients may watch the same bean @see LatencyHistogram
+ */
+package main;
+
+import java.util.Map;
+
+public interface MachineMXBean {
+
+    public Map<String, LatencyHistogram.Snapshot> getOperations();
+
+    public LatencyHistogram.Snapshot getReservationHoldTime();
+
+    public String getInventory();
+
+    public int getActiveLeases();
+
+    public long getExpiredLeases();
+
+    public long getDuplicateBatches();
+
+    public String getWaitMetrics();
+
+    public String getWalMetrics();
+
+    public String getWriterMetrics();
+
+    /**
+     * start a new interval for every latency of the bean, to follow them as they are now
+     */
+    public void resetLatencies();
+}
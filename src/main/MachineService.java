@@ -6,21 +6,91 @@
  *  
  * It will ensure communication between executors and machines
  * 
+ * tryTo and tryToAll answer with the code of a Status @see Status
+ * 
+ * Reservations belong to the transaction tx making them, they are kept under a lease @see Lease
+ *  consume and abort answer false when tx does not hold the reservation anymore (its lease expired)
+ * 
+ * The batch methods (tryToAll, consumeAll, abortAll) let a SlaveConsumer handle
+ *  every resource of a reaction located on the same machine with a single call per phase
+ * 
+ * commitOnePhase is the whole 2PC in one call, for a reaction whose inputs are all stored on one machine
+ * commitAndProduce is the Phase II of one machine in one call, it also adds the outputs of the reaction stored there
+ * 
+ * quantities is a cheap read-only query, executors use it to refresh their AvailabilityCache
+ * 
+ * pollChanges follows the changes of the inventory (long-poll on a cursor), for the reactive executors @see ChangeFeed
+ * 
  */
 package main;
 
+import java.net.InetSocketAddress;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.Map;
 
 public interface MachineService extends Remote {
 
-    public String tryTo(Resource R, int n) throws RemoteException;
+    public int tryTo(long tx, Resource R, int n) throws RemoteException;
 
-    public void consume(Resource R, int n) throws RemoteException;
+    /**
+     * like tryTo, but waits up to waitMillis in the queue of R for units held by other transactions
+     * @return the code of RESERVED, INSUFFICIENT or TIMEOUT @see Status
+     */
+    public int tryToWait(long tx, Resource R, int n, long waitMillis) throws RemoteException;
 
-    public void abort(Resource R) throws RemoteException;
+    public boolean consume(long tx, Resource R, int n) throws RemoteException;
+
+    public boolean abort(long tx, Resource R, int n) throws RemoteException;
 
     public void produce(Resource R, int n) throws RemoteException;
 
-    public String enumResource() throws RemoteException;
-}
\ No newline at end of file
+    /**
+     * add every resource of units at once, the outputs of many reactions coalesced by an executor
+     *  a batch already applied is ignored, so an executor may send it again when an answer was lost
+     * @param batch the id of the batch, unique among all executors
+     * @return true if the units were added, false if the batch had been applied already
+     */
+    public boolean produceAll(long batch, Map<Resource, Integer> units) throws RemoteException;
+
+    public int tryToAll(long tx, Map<Resource, Integer> demand) throws RemoteException;
+
+    public boolean consumeAll(long tx, Map<Resource, Integer> demand) throws RemoteException;
+
+    public boolean abortAll(long tx, Map<Resource, Integer> demand) throws RemoteException;
+
+    /**
+     * consumeAll then add the outputs stored here, in one call and at once for the other transactions
+     *  a commit already applied is answered CONSUMED again, so it may be sent again when an answer was lost
+     * @return the code of the Status : CONSUMED if the commit is applied, EXPIRED if the lease of tx expired
+     *         before (nothing is consumed nor produced), UNKNOWN if the machine has no trace of tx @see Status
+     */
+    public int commitAndProduce(long tx, Map<Resource, Integer> demand, Map<Resource, Integer> outputs) throws RemoteException;
+
+    /**
+     * consume every resource of demand at once, or none of them : no reservation, no lease, no Phase II
+     *  the outputs stored here are added with the inputs consumed
+     * @return the code of CONSUMED, LOCKED or INSUFFICIENT @see Status
+     */
+    public int commitOnePhase(long tx, Map<Resource, Integer> demand, Map<Resource, Integer> outputs) throws RemoteException;
+
+    public Directory enumResource() throws RemoteException;
+
+    /**
+     * @param resources the resources to read
+     * @return for each resource its cell (available and reserved units packed @see Inventory), -1 if it is not stored here
+     */
+    public long[] quantities(Resource[] resources) throws RemoteException;
+
+    /**
+     * @param cursor the next of the previous answer, -1 for the first poll
+     * @param waitMillis how long to wait when nothing changed since cursor
+     * @return the resources changed since cursor @see Changes
+     */
+    public Changes pollChanges(long cursor, long waitMillis) throws RemoteException;
+
+    /**
+     * @return the address of the NioMachineServer of the machine, null if it has none @see Transport
+     */
+    public InetSocketAddress nioEndpoint() throws RemoteException;
+}
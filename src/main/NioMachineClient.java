@@ -0,0 +1,441 @@
+/**
+ * @author Lyes Djemaa
+ * @version 1.0
+ * 
+ * This is the class NioMachineClient
+ * 
+ * <p>
+ * A MachineService reaching a Machine through its NioMachineServer instead of RMI @see NioProtocol
+ *  every call is a frame with its own id, sent on a single connection shared by all the threads of the executor,
+ *  so prepares to a machine are pipelined instead of waiting for each other
+ *  a reader thread completes the calls as their responses come back, in any order
+ *
+ * A call waits callTimeoutMillis at most for its response (plus its wait for tryToWait), then fails
+ *  with a RemoteException, like an RMI call to a machine that does not answer : a lost frame can't hold a worker
+ * When the connection breaks, the calls in flight fail and the next call opens a new connection
+ * An error reported by the machine is not a failure of the connection : like RMI, which throws the exception of
+ *  the remote method as it is, the call throws an IllegalStateException, so it is not taken for a call to try again
+ * 
+ * The control calls (enumResource, nioEndpoint) still go through the RMI stub of the machine
+ * </p>
+ */
+package main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.*;
+
+public class NioMachineClient implements MachineService {
+
+    /**
+     * longest wait (ms) for a response when no timeout is given
+     */
+    public static final long DEFAULT_CALL_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * attributes :
+     *      - endpoint : the address of the NioMachineServer
+     *      - connection : the connection to the server, replaced once broken @see connection
+     *      - control : the RMI stub of the same machine, for the control calls
+     *      - callTimeoutMillis : longest wait for a response
+     *      - ids : gives each request its id
+     *      - reconnects, timeouts : numbers of connections opened again, and of calls without response
+     *      - closed : the client was closed, it does not connect again
+     *      - logger : a logger
+     */
+    private final InetSocketAddress endpoint;
+    private volatile Connection connection;
+    private final MachineService control;
+    private final long callTimeoutMillis;
+    private final AtomicLong ids = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private volatile boolean closed = false;
+    private static final Logger logger = Logger.getLogger(NioMachineClient.class.getName());
+
+    /**
+     * one connection to the server, with its reader thread
+     *  - pending : the calls waiting for their response, by id
+     *  - broken : why the connection was lost, null while it is up
+     */
+    private final class Connection {
+        final SocketChannel channel;
+        final Map<Long, CompletableFuture<ByteBuffer>> pending = new ConcurrentHashMap<>();
+        volatile IOException broken;
+
+        Connection() throws IOException {
+            this.channel = SocketChannel.open(endpoint);
+            this.channel.socket().setTcpNoDelay(true);
+
+            Thread reader = new Thread(this::readResponses, "nio-client-" + endpoint);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * the loop of the reader thread, hands every response to the call waiting for it
+         *  a response coming after its call timed out is dropped
+         */
+        private void readResponses() {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            try {
+                while (true) {
+                    length.clear();
+                    readFully(length);
+                    int size = length.getInt(0);
+                    if (size < NioProtocol.HEADER || size > NioProtocol.MAX_FRAME) {
+                        throw new IOException("Bad frame length " + size);
+                    }
+
+                    ByteBuffer frame = ByteBuffer.allocate(size);
+                    readFully(frame);
+                    frame.flip();
+                    long id = frame.getLong();
+                    frame.get(); // status, read back by call
+
+                    CompletableFuture<ByteBuffer> response = pending.remove(id);
+                    if (response != null) {
+                        response.complete(frame);
+                    }
+                }
+            }
+            catch (IOException e) {
+                if (!closed) logger.warning(() -> "NIO connection to " + endpoint + " lost : " + e);
+                fail(e);
+            }
+        }
+
+        private void readFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new IOException("Connection closed by the machine");
+                }
+            }
+        }
+
+        /**
+         * mark the connection broken, close it and fail all the calls in flight
+         */
+        void fail(IOException e) {
+            if (broken == null) broken = e;
+            try {
+                channel.close();
+            }
+            catch (IOException ignored) {
+                // the connection is dropped anyway
+            }
+            for (Long id : pending.keySet()) {
+                CompletableFuture<ByteBuffer> response = pending.remove(id);
+                if (response != null) response.completeExceptionally(broken);
+            }
+        }
+    }
+
+    /**
+     * connect to the server, with the default timeout of the calls
+     * 
+     * @param endpoint the address of the NioMachineServer
+     * @param control the RMI stub of the same machine
+     * @throws IOException if the server can't be reached
+     */
+    public NioMachineClient(InetSocketAddress endpoint, MachineService control) throws IOException {
+        this(endpoint, control, DEFAULT_CALL_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param callTimeoutMillis longest wait for the response of a call
+     * @throws IllegalArgumentException if callTimeoutMillis is not positive
+     */
+    public NioMachineClient(InetSocketAddress endpoint, MachineService control, long callTimeoutMillis) throws IOException {
+        if (callTimeoutMillis <= 0) throw new IllegalArgumentException("The call timeout must be positive");
+        this.endpoint = endpoint;
+        this.control = control;
+        this.callTimeoutMillis = callTimeoutMillis;
+        this.connection = new Connection();
+    }
+
+    //getters
+    public long getReconnects() { return this.reconnects.get(); }
+    public long getTimeouts() { return this.timeouts.get(); }
+
+    /**
+     * @return the connection up, a new one if the last one broke
+     * @throws RemoteException if the server can't be reached again
+     */
+    private Connection connection() throws RemoteException {
+        Connection current = this.connection;
+        if (current.broken == null) return current;
+
+        synchronized (this) {
+            if (closed) throw new RemoteException("NIO client of " + endpoint + " closed");
+            if (this.connection.broken == null) return this.connection;
+            try {
+                this.connection = new Connection();
+            }
+            catch (IOException e) {
+                throw new RemoteException("Could not connect again to " + endpoint, e);
+            }
+            reconnects.incrementAndGet();
+            logger.info(() -> "NIO connection to " + endpoint + " opened again");
+            return this.connection;
+        }
+    }
+
+    /**
+     * send a request and wait for its response, callTimeoutMillis at most
+     */
+    private DataInputStream call(byte op, ByteArrayOutputStream body) throws RemoteException {
+        return call(op, body, this.callTimeoutMillis);
+    }
+
+    /**
+     * send a request and wait for its response
+     * 
+     * @param op the operation, @see NioProtocol
+     * @param body the payload of the request
+     * @param timeoutMillis longest wait for the response
+     * @return the payload of the response
+     * @throws RemoteException if the connection broke or the response did not come in time
+     * @throws IllegalStateException if the machine reported an error
+     */
+    private DataInputStream call(byte op, ByteArrayOutputStream body, long timeoutMillis) throws RemoteException {
+        Connection c = connection();
+        long id = ids.incrementAndGet();
+        CompletableFuture<ByteBuffer> response = new CompletableFuture<>();
+        c.pending.put(id, response);
+
+        try {
+            if (c.broken != null) {
+                throw c.broken;
+            }
+
+            ByteBuffer frame = NioProtocol.frame(id, op, body);
+            synchronized (c.channel) {
+                while (frame.hasRemaining()) {
+                    c.channel.write(frame);
+                }
+            }
+
+            ByteBuffer reply = response.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            DataInputStream in = NioProtocol.payload(reply);
+            if (reply.get(reply.position() - 1) == NioProtocol.ERROR) {
+                throw new IllegalStateException("Machine error: " + in.readUTF());
+            }
+            return in;
+        }
+        catch (RemoteException e) {
+            throw e;
+        }
+        catch (IOException e) {
+            c.pending.remove(id);
+            // a write failed : the others sharing the connection can't use it either
+            c.fail(e);
+            throw new RemoteException("NIO call failed", e);
+        }
+        catch (TimeoutException e) {
+            c.pending.remove(id);
+            timeouts.incrementAndGet();
+            throw new RemoteException("No response from " + endpoint + " after " + timeoutMillis + " ms");
+        }
+        catch (InterruptedException e) {
+            c.pending.remove(id);
+            Thread.currentThread().interrupt();
+            throw new RemoteException("NIO call interrupted", e);
+        }
+        catch (ExecutionException e) {
+            throw new RemoteException("NIO call failed", e.getCause());
+        }
+    }
+
+    /**
+     * close the connection, the calls in flight fail and no new connection is opened
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+        }
+        connection.fail(new IOException("NIO client closed"));
+    }
+
+    @Override
+    public int tryTo(long tx, Resource R, int n) throws RemoteException {
+        try {
+            return call(NioProtocol.TRY_TO, body(tx, R, n)).readInt();
+        }
+        catch (RemoteException e) { throw e; }
+        catch (IOException e) { throw new RemoteException("Bad response", e); }
+    }
+
+    @Override
+    public int tryToWait(long tx, Resource R, int n, long waitMillis) throws RemoteException {
+        try {
+            ByteArrayOutputStream body = body(tx, R, n);
+            new DataOutputStream(body).writeLong(waitMillis);
+            // the machine may hold the call waitMillis before answering
+            return call(NioProtocol.TRY_TO_WAIT, body, this.callTimeoutMillis + waitMillis).readInt();
+        }
+        catch (RemoteException e) { throw e; }
+        catch (IOException e) { throw new RemoteException("Bad response", e); }
+    }
+
+    @Override
+    public boolean consume(long tx, Resource R, int n) throws RemoteException {
+        return callBoolean(NioProtocol.CONSUME, body(tx, R, n));
+    }
+
+    @Override
+    public boolean abort(long tx, Resource R, int n) throws RemoteException {
+        return callBoolean(NioProtocol.ABORT, body(tx, R, n));
+    }
+
+    @Override
+    public void produce(Resource R, int n) throws RemoteException {
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(body);
+            out.writeUTF(R.toString());
+            out.writeInt(n);
+            call(NioProtocol.PRODUCE, body);
+        }
+        catch (RemoteException e) { throw e; }
+        catch (IOException e) { throw new RemoteException("Bad request", e); }
+    }
+
+    @Override
+    public boolean produceAll(long batch, Map<Resource, Integer> units) throws RemoteException {
+        return callBoolean(NioProtocol.PRODUCE_ALL, body(batch, units));
+    }
+
+    @Override
+    public int tryToAll(long tx, Map<Resource, Integer> demand) throws RemoteException {
+        try {
+            return call(NioProtocol.TRY_TO_ALL, body(tx, demand)).readInt();
+        }
+        catch (RemoteException e) { throw e; }
+        catch (IOException e) { throw new RemoteException("Bad response", e); }
+    }
+
+    @Override
+    public boolean consumeAll(long tx, Map<Resource, Integer> demand) throws RemoteException {
+        return callBoolean(NioProtocol.CONSUME_ALL, body(tx, demand));
+    }
+
+    @Override
+    public boolean abortAll(long tx, Map<Resource, Integer> demand) throws RemoteException {
+        return callBoolean(NioProtocol.ABORT_ALL, body(tx, demand));
+    }
+
+    @Override
+    public int commitAndProduce(long tx, Map<Resource, Integer> demand, Map<Resource, Integer> outputs) throws RemoteException {
+        try {
+            return call(NioProtocol.COMMIT_AND_PRODUCE, body(tx, demand, outputs)).readInt();
+        }
+        catch (RemoteException e) { throw e; }
+        catch (IOException e) { throw new RemoteException("Bad response", e); }
+    }
+
+    @Override
+    public int commitOnePhase(long tx, Map<Resource, Integer> demand, Map<Resource, Integer> outputs) throws RemoteException {
+        try {
+            return call(NioProtocol.COMMIT_ONE_PHASE, body(tx, demand, outputs)).readInt();
+        }
+        catch (RemoteException e) { throw e; }
+        catch (IOException e) { throw new RemoteException("Bad response", e); }
+    }
+
+    @Override
+    public long[] quantities(Resource[] resources) throws RemoteException {
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(body);
+            out.writeInt(resources.length);
+            for (Resource R : resources) {
+                out.writeUTF(R.toString());
+            }
+
+            DataInputStream in = call(NioProtocol.QUANTITIES, body);
+            long[] cells = new long[resources.length];
+            for (int i = 0; i < cells.length; ++i) {
+                cells[i] = in.readLong();
+            }
+            return cells;
+        }
+        catch (RemoteException e) { throw e; }
+        catch (IOException e) { throw new RemoteException("Bad response", e); }
+    }
+
+    /**
+     * a long-poll would hold a selector thread of the server, it goes through RMI
+     */
+    @Override
+    public Changes pollChanges(long cursor, long waitMillis) throws RemoteException {
+        return control.pollChanges(cursor, waitMillis);
+    }
+
+    @Override
+    public Directory enumResource() throws RemoteException {
+        return control.enumResource();
+    }
+
+    @Override
+    public InetSocketAddress nioEndpoint() throws RemoteException {
+        return control.nioEndpoint();
+    }
+
+    /**
+     * a call answered by a boolean
+     */
+    private boolean callBoolean(byte op, ByteArrayOutputStream body) throws RemoteException {
+        try {
+            return call(op, body).readBoolean();
+        }
+        catch (RemoteException e) { throw e; }
+        catch (IOException e) { throw new RemoteException("Bad response", e); }
+    }
+
+    private static ByteArrayOutputStream body(long tx, Resource R, int n) throws RemoteException {
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(body);
+            out.writeLong(tx);
+            out.writeUTF(R.toString());
+            out.writeInt(n);
+            return body;
+        }
+        catch (IOException e) { throw new RemoteException("Bad request", e); }
+    }
+
+    private static ByteArrayOutputStream body(long tx, Map<Resource, Integer> demand) throws RemoteException {
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(body);
+            out.writeLong(tx);
+            NioProtocol.writeDemand(out, demand);
+            return body;
+        }
+        catch (IOException e) { throw new RemoteException("Bad request", e); }
+    }
+
+    private static ByteArrayOutputStream body(long tx, Map<Resource, Integer> demand, Map<Resource, Integer> outputs)
+            throws RemoteException {
+        try {
+            ByteArrayOutputStream body = body(tx, demand);
+            NioProtocol.writeDemand(new DataOutputStream(body), outputs);
+            return body;
+        }
+        catch (IOException e) { throw new RemoteException("Bad request", e); }
+    }
+}
@@ -0,0 +1,438 @@
+/**
+ * @author Lyes Djemaa
+ * @version 1.0
+ * 
+ * This is the class NioMachineServer
+ * 
+ * <p>
+ * It serves the operations of a Machine to NioMachineClients @see NioProtocol
+ *  an acceptor thread hands each new connection to one of a few selector threads (round robin)
+ *  a selector thread reads the frames of all its connections without blocking, applies them on the machine
+ *  and queues the responses, so a handful of threads serve thousands of executors
+ * 
+ * The operations of a Machine never block, so they are applied directly by the selector thread
+ *  except tryToWait, which may wait for units held by other transactions : it is handed to the pool of
+ *  blocking workers, which gives its response back to the selector thread of the connection
+ *  On a durable machine (--wal) every change waits for its record to be on the disk, so all of them
+ *  are handed to the blocking workers, only QUANTITIES stays on the selector thread
+ *
+ * The blocking workers are bounded (BLOCKING_THREADS, and BLOCKING_QUEUE requests waiting for one)
+ *  when they are all taken, the connection whose request can't be handed over stops being read : its frames
+ *  stay in the socket, TCP slows its executor down, and it is read again once a worker gave a response back
+ * </p>
+ */
+package main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.*;
+
+public class NioMachineServer {
+
+    /**
+     * attributes :
+     *      - machine : the machine we serve
+     *      - server : the listening channel
+     *      - loops : the selector threads
+     *      - blocking : the workers serving the operations that may wait, bounded @see BLOCKING_THREADS
+     *      - pauses : number of times a connection stopped being read because the workers were all taken
+     *      - logger : a logger
+     */
+    private final Machine machine;
+    private final ServerSocketChannel server;
+    private final Loop[] loops;
+    private final ThreadPoolExecutor blocking;
+    private final AtomicLong pauses = new AtomicLong();
+    private static final Logger logger = Logger.getLogger(NioMachineServer.class.getName());
+
+    /**
+     * open the server and start its threads
+     * 
+     * @param machine the machine to serve
+     * @param port the port to listen on
+     * @param threads the number of selector threads
+     * @throws IOException if the port can't be bound
+     */
+    public NioMachineServer(Machine machine, int port, int threads) throws IOException {
+        this.machine = machine;
+        this.blocking = new ThreadPoolExecutor(BLOCKING_THREADS, BLOCKING_THREADS, 60, TimeUnit.SECONDS,
+                                               new ArrayBlockingQueue<>(BLOCKING_QUEUE), r -> {
+            Thread t = new Thread(r, "nio-blocking");
+            t.setDaemon(true);
+            return t;
+        });
+        this.blocking.allowCoreThreadTimeOut(true);
+        this.server = ServerSocketChannel.open();
+        this.server.bind(new InetSocketAddress(port));
+
+        this.loops = new Loop[threads];
+        for (int i = 0; i < threads; ++i) {
+            this.loops[i] = new Loop();
+            start(this.loops[i], "nio-selector-" + i);
+        }
+        start(this::accept, "nio-acceptor");
+    }
+
+    /**
+     * the most blocking workers (a tryToWait holds one for its whole wait), and the requests waiting for one
+     */
+    public static final int BLOCKING_THREADS = 256;
+    public static final int BLOCKING_QUEUE = 1024;
+
+    //getters
+    public int getPort() { return this.server.socket().getLocalPort(); }
+    public long getPauses() { return this.pauses.get(); }
+
+    private static void start(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * the loop of the acceptor thread
+     */
+    private void accept() {
+        int next = 0;
+        while (true) {
+            try {
+                SocketChannel channel = server.accept();
+                channel.socket().setTcpNoDelay(true);
+                channel.configureBlocking(false);
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+            catch (IOException e) {
+                System.err.println("NioMachineServer accept failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * a blocking worker is free : wake the selector threads holding paused connections, the workers are shared
+     */
+    private void wakePaused() {
+        for (Loop loop : loops) {
+            if (loop.waiting) loop.selector.wakeup();
+        }
+    }
+
+    /**
+     * @return true if the operation may block, it must not run on a selector thread then
+     */
+    private boolean blocks(byte op) {
+        return op == NioProtocol.TRY_TO_WAIT
+               || ((machine.isDurable() || machine.isSingleWriter()) && op != NioProtocol.QUANTITIES);
+    }
+
+    /**
+     * apply one request on the machine
+     * 
+     * @param op the operation @see NioProtocol
+     * @param in the payload of the request
+     * @param out where to write the payload of the response
+     */
+    private void apply(byte op, DataInputStream in, DataOutputStream out) throws IOException {
+        switch (op) {
+            case NioProtocol.TRY_TO:
+                out.writeInt(machine.tryTo(in.readLong(), Resource.received(in.readUTF()), in.readInt()));
+                break;
+            case NioProtocol.CONSUME:
+                out.writeBoolean(machine.consume(in.readLong(), Resource.received(in.readUTF()), in.readInt()));
+                break;
+            case NioProtocol.ABORT:
+                out.writeBoolean(machine.abort(in.readLong(), Resource.received(in.readUTF()), in.readInt()));
+                break;
+            case NioProtocol.PRODUCE:
+                machine.produce(Resource.received(in.readUTF()), in.readInt());
+                break;
+            case NioProtocol.PRODUCE_ALL:
+                out.writeBoolean(machine.produceAll(in.readLong(), NioProtocol.readDemand(in)));
+                break;
+            case NioProtocol.TRY_TO_ALL:
+                out.writeInt(machine.tryToAll(in.readLong(), NioProtocol.readDemand(in)));
+                break;
+            case NioProtocol.CONSUME_ALL:
+                out.writeBoolean(machine.consumeAll(in.readLong(), NioProtocol.readDemand(in)));
+                break;
+            case NioProtocol.ABORT_ALL:
+                out.writeBoolean(machine.abortAll(in.readLong(), NioProtocol.readDemand(in)));
+                break;
+            case NioProtocol.COMMIT_ONE_PHASE:
+                out.writeInt(machine.commitOnePhase(in.readLong(), NioProtocol.readDemand(in), NioProtocol.readDemand(in)));
+                break;
+            case NioProtocol.COMMIT_AND_PRODUCE:
+                out.writeInt(machine.commitAndProduce(in.readLong(), NioProtocol.readDemand(in), NioProtocol.readDemand(in)));
+                break;
+            case NioProtocol.TRY_TO_WAIT:
+                out.writeInt(machine.tryToWait(in.readLong(), Resource.received(in.readUTF()), in.readInt(), in.readLong()));
+                break;
+            case NioProtocol.QUANTITIES:
+                Resource[] resources = new Resource[in.readInt()];
+                for (int i = 0; i < resources.length; ++i) {
+                    resources[i] = Resource.received(in.readUTF());
+                }
+                for (long cell : machine.quantities(resources)) {
+                    out.writeLong(cell);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown operation " + op);
+        }
+    }
+
+    /**
+     * the state of one connection
+     *      - input : the bytes received and not yet handled
+     *      - output : the responses not yet written
+     *      - paused : not read until a blocking worker is free @see Loop#resume
+     */
+    private static class Connection {
+        final SocketChannel channel;
+        ByteBuffer input = ByteBuffer.allocate(4096);
+        final Queue<ByteBuffer> output = new ArrayDeque<>();
+        boolean paused = false;
+
+        Connection(SocketChannel channel) { this.channel = channel; }
+
+        /**
+         * @return OP_READ, or nothing while the connection is paused
+         */
+        int reading() { return paused ? 0 : SelectionKey.OP_READ; }
+    }
+
+    /**
+     * a response computed by a blocking worker, to be written by the selector thread of its connection
+     */
+    private static class Completed {
+        final Connection connection;
+        final ByteBuffer response;
+
+        Completed(Connection connection, ByteBuffer response) {
+            this.connection = connection;
+            this.response = response;
+        }
+    }
+
+    /**
+     * a selector thread and the connections it owns
+     */
+    private class Loop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> incoming = new ConcurrentLinkedQueue<>();
+        private final Queue<Completed> completed = new ConcurrentLinkedQueue<>();
+        private final List<SelectionKey> paused = new ArrayList<>();
+        private volatile boolean waiting = false;
+
+        Loop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            incoming.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+
+                    SocketChannel channel;
+                    while ((channel = incoming.poll()) != null) {
+                        channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+                    }
+
+                    Completed done;
+                    while ((done = completed.poll()) != null) {
+                        SelectionKey key = done.connection.channel.keyFor(selector);
+                        if (key == null || !key.isValid()) continue; // the executor left meanwhile
+                        done.connection.output.add(done.response);
+                        try {
+                            write(key, done.connection);
+                        }
+                        catch (IOException e) {
+                            key.cancel();
+                            done.connection.channel.close();
+                        }
+                    }
+                    if (waiting && blocking.getQueue().remainingCapacity() > 0) {
+                        resume();
+                    }
+
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        Connection c = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) read(key, c);
+                            if (key.isValid() && key.isWritable()) write(key, c);
+                        }
+                        catch (IOException e) {
+                            logger.fine(() -> "NIO connection closed : " + e);
+                            key.cancel();
+                            c.channel.close();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+                catch (IOException e) {
+                    System.err.println("NioMachineServer selector failed: " + e);
+                }
+            }
+        }
+
+        /**
+         * a worker is free again : read again the connections paused, starting with the frames they kept
+         */
+        private void resume() {
+            List<SelectionKey> keys = new ArrayList<>(paused);
+            paused.clear();
+            waiting = false;
+            for (SelectionKey key : keys) {
+                if (!key.isValid()) continue;
+                Connection c = (Connection) key.attachment();
+                c.paused = false;
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                try {
+                    handleFrames(key, c);
+                }
+                catch (IOException e) {
+                    key.cancel();
+                    try {
+                        c.channel.close();
+                    }
+                    catch (IOException ignored) {}
+                }
+            }
+        }
+
+        /**
+         * read what is available, handle every complete frame and start writing the responses
+         */
+        private void read(SelectionKey key, Connection c) throws IOException {
+            if (c.channel.read(c.input) < 0) {
+                throw new IOException("Connection closed by the executor");
+            }
+            handleFrames(key, c);
+        }
+
+        /**
+         * handle every complete frame of the input, the blocking ones by the workers
+         *  when no worker can take one, it is kept with the frames after it and the connection is paused
+         */
+        private void handleFrames(SelectionKey key, Connection c) throws IOException {
+            c.input.flip();
+
+            while (c.input.remaining() >= 4) {
+                int size = c.input.getInt(c.input.position());
+                if (size < NioProtocol.HEADER || size > NioProtocol.MAX_FRAME) {
+                    throw new IOException("Bad frame length " + size);
+                }
+                if (c.input.remaining() < 4 + size) {
+                    break;
+                }
+
+                int start = c.input.position();
+                c.input.getInt();
+                ByteBuffer frame = c.input.slice();
+                frame.limit(size);
+                c.input.position(c.input.position() + size);
+
+                if (blocks(frame.get(frame.position() + 8))) {
+                    // the slice is overwritten by the next reads, the worker needs its own copy
+                    ByteBuffer copy = ByteBuffer.allocate(size);
+                    copy.put(frame).flip();
+                    try {
+                        blocking.execute(() -> {
+                            completed.add(new Completed(c, handle(copy)));
+                            selector.wakeup();
+                            wakePaused();
+                        });
+                    }
+                    catch (RejectedExecutionException full) {
+                        c.input.position(start);
+                        c.paused = true;
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                        paused.add(key);
+                        waiting = true;
+                        pauses.incrementAndGet();
+                        logger.fine(() -> "NIO workers all taken, connection paused");
+                        break;
+                    }
+                    continue;
+                }
+                c.output.add(handle(frame));
+            }
+
+            // keep the partial frame, grow the buffer if it can't hold it
+            c.input.compact();
+            if (!c.input.hasRemaining() && !c.paused) {
+                ByteBuffer larger = ByteBuffer.allocate(c.input.capacity() * 2);
+                c.input.flip();
+                larger.put(c.input);
+                c.input = larger;
+            }
+
+            if (!c.output.isEmpty()) {
+                write(key, c);
+            }
+        }
+
+        /**
+         * write the queued responses, wait for the channel to be writable again if it is full
+         */
+        private void write(SelectionKey key, Connection c) throws IOException {
+            ByteBuffer next;
+            while ((next = c.output.peek()) != null) {
+                c.channel.write(next);
+                if (next.hasRemaining()) {
+                    key.interestOps(c.reading() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                c.output.poll();
+            }
+            key.interestOps(c.reading());
+        }
+
+        /**
+         * @param frame a request without its length
+         * @return the response frame
+         */
+        private ByteBuffer handle(ByteBuffer frame) {
+            long id = frame.getLong();
+            byte op = frame.get();
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try {
+                apply(op, NioProtocol.payload(frame), new DataOutputStream(body));
+                return NioProtocol.frame(id, NioProtocol.OK, body);
+            }
+            catch (Exception e) {
+                body.reset();
+                try {
+                    new DataOutputStream(body).writeUTF(String.valueOf(e.getMessage()));
+                }
+                catch (IOException ignored) {}
+                return NioProtocol.frame(id, NioProtocol.ERROR, body);
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * @author Lyes Djemaa
+ * @version 1.0
+ * 
+ * A small class NioProtocol
+ * 
+ * the binary frames exchanged between a NioMachineClient and a NioMachineServer
+ *  request  := [int length][long id][byte op][payload]
+ *  response := [int length][long id][byte status][payload]
+ *  where length counts the bytes following it
+ * 
+ * the id lets many requests be outstanding on one connection, the responses may come back in any order
+ * payloads are written with DataOutputStream (transaction ids as long, resources by name,
+ *  demands as a count followed by (name, units) pairs), consume and abort answer a boolean
+ *  quantities sends a count followed by names and answers as many cells (long)
+ *  tryToWait sends the payload of tryTo followed by the wait (long), it is served apart as it blocks
+ *  commitOnePhase sends the payload of tryToAll followed by the outputs (like a demand) and answers like tryToAll
+ *  commitAndProduce sends the payload of consumeAll followed by the outputs, and answers a Status like tryToAll
+ *  produceAll sends the batch id (long) then the units like a demand, and answers a boolean
+ */
+package main;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+final class NioProtocol {
+
+    //operations
+    static final byte TRY_TO = 1;
+    static final byte CONSUME = 2;
+    static final byte ABORT = 3;
+    static final byte PRODUCE = 4;
+    static final byte TRY_TO_ALL = 5;
+    static final byte CONSUME_ALL = 6;
+    static final byte ABORT_ALL = 7;
+    static final byte QUANTITIES = 8;
+    static final byte TRY_TO_WAIT = 9;
+    static final byte COMMIT_ONE_PHASE = 10;
+    static final byte PRODUCE_ALL = 11;
+    static final byte COMMIT_AND_PRODUCE = 12;
+
+    //status of a response
+    static final byte OK = 0;
+    static final byte ERROR = 1;
+
+    /** 
+     * size of [long id][byte op or status] 
+     */
+    static final int HEADER = 9;
+
+    /**
+     * a frame larger than this is considered as a broken peer
+     */
+    static final int MAX_FRAME = 1 << 24;
+
+    private NioProtocol() {}
+
+    /**
+     * @return a frame ready to be written, the payload is the content of body
+     */
+    static ByteBuffer frame(long id, byte kind, ByteArrayOutputStream body) {
+        ByteBuffer frame = ByteBuffer.allocate(4 + HEADER + body.size());
+        frame.putInt(HEADER + body.size()).putLong(id).put(kind).put(body.toByteArray());
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * @param frame a frame without its length, positioned after the header
+     * @return a stream reading its payload
+     */
+    static DataInputStream payload(ByteBuffer frame) {
+        return new DataInputStream(new ByteArrayInputStream(frame.array(), 
+                                                            frame.arrayOffset() + frame.position(), 
+                                                            frame.remaining()));
+    }
+
+    static void writeDemand(DataOutputStream out, Map<Resource, Integer> demand) throws IOException {
+        out.writeInt(demand.size());
+        for (Map.Entry<Resource, Integer> e : demand.entrySet()) {
+            out.writeUTF(e.getKey().toString());
+            out.writeInt(e.getValue());
+        }
+    }
+
+    static Map<Resource, Integer> readDemand(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        Map<Resource, Integer> demand = new HashMap<>();
+        for (int i = 0; i < size; ++i) {
+            demand.put(Resource.received(in.readUTF()), in.readInt());
+        }
+        return demand;
+    }
+}
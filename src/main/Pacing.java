@@ -0,0 +1,139 @@
+/**
+ * @author Lyes Djemaa
+ * @version 1.0
+ *
+ * The class Pacing
+ *
+ * It decides how long a worker of an Executor waits between two attempts @see Executor#runWorker
+ *  one instance is shared by the workers of an executor
+ *
+ *  - "fixed" : always --delay, whatever happened (the historical behaviour)
+ *  - "adaptive" : the wait depends on the outcome of the attempt, bounded by --minDelay and --maxDelay
+ *      COMMITTED : --minDelay, the next attempt comes at once when there is no contention
+ *      LOCKED, FAILED : exponential backoff with full jitter, a random wait in [min, delay * 2^streak]
+ *                       where streak counts the refusals in a row of this worker
+ *      INSUFFICIENT : the worker only waits --minDelay, but the reaction itself is parked for
+ *                     delay * 2^streak (its own refusals in a row), other reactions are selected meanwhile
+ */
+package main;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+public class Pacing {
+
+    /**
+     * the parking of one reaction, guarded by its own monitor
+     *  - until : System.nanoTime() before which it is not selected
+     *  - streak : its INSUFFICIENT in a row
+     */
+    private static final class Parking {
+        long until;
+        int streak;
+    }
+
+    /**
+     * a streak longer than this does not grow the wait anymore (2^16 times the delay is beyond any bound)
+     */
+    private static final int MAX_STREAK = 16;
+
+    private final boolean adaptive;
+    private final int delay;
+    private final int minDelay;
+    private final int maxDelay;
+    private final Map<ReactionRule, Parking> parkings = new IdentityHashMap<>();
+
+    /**
+     * @param kind "fixed" or "adaptive"
+     * @param reactions the reactions of the executor
+     * @param delay the --delay, the wait of "fixed" and the first step of the backoff of "adaptive"
+     * @param minDelay lower bound of the waits of "adaptive"
+     * @param maxDelay upper bound of the waits and parkings of "adaptive"
+     * @throws IllegalArgumentException for an unknown kind or bounds out of order
+     */
+    public Pacing(String kind, ReactionRule[] reactions, int delay, int minDelay, int maxDelay) {
+        if (!"fixed".equals(kind) && !"adaptive".equals(kind)) {
+            throw new IllegalArgumentException("Unknown pacing " + kind + ", expected fixed or adaptive");
+        }
+        if (minDelay < 0 || maxDelay < minDelay) {
+            throw new IllegalArgumentException("Expected 0 <= --minDelay <= --maxDelay");
+        }
+        this.adaptive = "adaptive".equals(kind);
+        this.delay = delay;
+        this.minDelay = minDelay;
+        this.maxDelay = maxDelay;
+        for (ReactionRule rl : reactions) {
+            parkings.put(rl, new Parking());
+        }
+    }
+
+    /**
+     * @return a fixed pacing of delay ms
+     */
+    public static Pacing fixed(ReactionRule[] reactions, int delay) {
+        return new Pacing("fixed", reactions, delay, delay, delay);
+    }
+
+    /**
+     * @return true if rl was parked after running short of units, and must not be selected yet
+     */
+    public boolean isParked(ReactionRule rl, long now) {
+        if (!adaptive) return false;
+
+        Parking p = parkings.get(rl);
+        if (p == null) return false;
+        synchronized (p) {
+            return now - p.until < 0;
+        }
+    }
+
+    /**
+     * the wait of a worker after an attempt, parks rl when it ran short of units
+     *
+     * @param rl the reaction attempted
+     * @param outcome how the attempt ended
+     * @param streak the refusals in a row of the worker, this one included
+     * @return the time (ms) to wait before the next attempt
+     */
+    public long pause(ReactionRule rl, AttemptResult outcome, int streak) {
+        if (!adaptive) return delay;
+
+        Parking p = parkings.get(rl);
+        switch (outcome) {
+            case COMMITTED:
+                if (p != null) {
+                    synchronized (p) { p.streak = 0; }
+                }
+                return minDelay;
+
+            case INSUFFICIENT:
+                if (p != null) {
+                    synchronized (p) {
+                        p.streak = Math.min(p.streak + 1, MAX_STREAK);
+                        p.until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(step(p.streak));
+                    }
+                }
+                return minDelay;
+
+            default:
+                return minDelay + ThreadLocalRandom.current().nextLong(step(streak) - minDelay + 1);
+        }
+    }
+
+    /**
+     * @return the time (ms) to wait when no reaction can be selected
+     */
+    public long idle() {
+        return adaptive ? Math.max(minDelay, Math.min(delay, maxDelay)) : delay;
+    }
+
+    /**
+     * @return delay * 2^(streak - 1), within the bounds
+     */
+    private long step(int streak) {
+        long wait = (long) Math.max(delay, 1) << (Math.min(Math.max(streak, 1), MAX_STREAK) - 1);
+        return Math.max(minDelay, Math.min(wait, maxDelay));
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ * @author Lyes Djemaa
+ * @version 1.0
+ *
+ * The class ProductionPipeline
+ *
+ * It produces the outputs of the reactions committed by an Executor, coalesced by machine @see Executor#produceOutputs
+ *
+ * <p>
+ * A committed reaction only queues its outputs : the units of a resource queued by many reactions add up,
+ *  and the queue of a machine is sent as one produceAll (a batch) instead of one produce per output
+ *  - size trigger : a queue holding batchSize outputs is sent at once
+ *  - time trigger : an output never waits more than lingerMillis in the queue, a flusher thread sends the late ones
+ * At most one batch per machine is in flight, the outputs queued meanwhile go in the next one,
+ *  so a busy machine receives fewer and larger batches
+ *
+ * A batch is sent by a SlaveProducer on the engine of the executor, retried until the machine applied it
+ *  batch ids are laid out like the transactions : the port and the incarnation of the executor then a counter
+ *  @see Executor#idPrefix, so a restarted executor does not reuse the ids its previous run left on the machines
+ * </p>
+ */
+package main;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ProductionPipeline {
+
+    public static final int DEFAULT_BATCH_SIZE = 64;
+    public static final long DEFAULT_LINGER_MILLIS = 5;
+
+    /**
+     * the outputs queued for one machine, guarded by the monitor of the pipeline
+     *  - units : the units of each resource, coalesced
+     *  - produced : one future per output queued, completed once its batch was applied
+     *  - since : when the first output was queued (ns)
+     *  - inFlight : a batch of the machine is being sent
+     */
+    private static final class Queue {
+        final MachineService stub;
+        Map<Resource, Integer> units = new HashMap<>();
+        List<CompletableFuture<Boolean>> produced = new ArrayList<>();
+        long since;
+        boolean inFlight = false;
+
+        Queue(MachineService stub) {
+            this.stub = stub;
+        }
+    }
+
+    private final int port;
+    private final long idPrefix;
+    private final int batchSize;
+    private final long lingerNanos;
+    private final ExecutorService senders;
+    private final Map<MachineService, Queue> queues = new HashMap<>();
+    private final AtomicLong batchCounter = new AtomicLong();
+
+    private final AtomicLong outputs = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param port the port of the executor
+     * @param incarnation the incarnation of the executor, with the port the high bits of the batch ids
+     * @param batchSize number of outputs queued for a machine that sends them at once
+     * @param lingerMillis longest wait of an output in the queue, 0 to send each output at once
+     * @param senders the engine running the SlaveProducers
+     * @throws IllegalArgumentException if batchSize is not positive or lingerMillis negative
+     */
+    public ProductionPipeline(int port, int incarnation, int batchSize, long lingerMillis, ExecutorService senders) {
+        if (batchSize < 1) throw new IllegalArgumentException("The batch size must be positive");
+        if (lingerMillis < 0) throw new IllegalArgumentException("The linger can't be negative");
+        this.port = port;
+        this.idPrefix = Executor.idPrefix(port, incarnation);
+        this.batchSize = batchSize;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.senders = senders;
+
+        Thread flusher = new Thread(this::flushLoop, "production-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    //getters
+    public long getOutputs() { return this.outputs.get(); }
+    public long getBatches() { return this.batches.get(); }
+    public long getRetries() { return this.retries.get(); }
+    public long getFailed() { return this.failed.get(); }
+
+    /**
+     * queue n units of R for the machine stub
+     *
+     * @return completed with true once the units were added, false if the sender gave up before @see SlaveProducer
+     */
+    public synchronized CompletableFuture<Boolean> submit(MachineService stub, Resource R, int n) {
+        Queue q = queues.computeIfAbsent(stub, Queue::new);
+        if (q.produced.isEmpty()) {
+            q.since = System.nanoTime();
+            // the flusher may sleep until a later deadline
+            notifyAll();
+        }
+        q.units.merge(R, n, Integer::sum);
+        CompletableFuture<Boolean> done = new CompletableFuture<>();
+        q.produced.add(done);
+        outputs.incrementAndGet();
+
+        if (q.produced.size() >= batchSize || lingerNanos == 0) {
+            send(q);
+        }
+        return done;
+    }
+
+    /**
+     * hand the queue of a machine to a SlaveProducer, unless a batch of it is in flight
+     *  called with the monitor held
+     */
+    private void send(Queue q) {
+        if (q.inFlight || q.produced.isEmpty()) return;
+
+        long batch = this.idPrefix | (batchCounter.incrementAndGet() & 0xffffffffL);
+        SlaveProducer sp = new SlaveProducer(batch, q.units, q.stub, this.port, q.produced);
+        q.units = new HashMap<>();
+        q.produced = new ArrayList<>();
+        q.inFlight = true;
+        batches.incrementAndGet();
+
+        senders.execute(() -> {
+            try {
+                sp.run();
+            }
+            finally {
+                sent(q, sp);
+            }
+        });
+    }
+
+    /**
+     * the batch in flight of q ended, the next one may go if it is due already
+     */
+    private synchronized void sent(Queue q, SlaveProducer sp) {
+        q.inFlight = false;
+        retries.addAndGet(sp.getRetries());
+        if (!sp.isApplied()) failed.incrementAndGet();
+
+        if (q.produced.size() >= batchSize || lingerNanos == 0) {
+            send(q);
+        }
+        else {
+            notifyAll();
+        }
+    }
+
+    /**
+     * the loop of the flusher : send the queues whose first output waited lingerMillis, then sleep until the next deadline
+     */
+    private synchronized void flushLoop() {
+        while (true) {
+            long now = System.nanoTime();
+            long next = Long.MAX_VALUE;
+            for (Queue q : queues.values()) {
+                if (q.inFlight || q.produced.isEmpty()) continue;
+                if (now - q.since >= lingerNanos) send(q);
+                else next = Math.min(next, q.since + lingerNanos);
+            }
+
+            try {
+                if (next == Long.MAX_VALUE) wait();
+                else TimeUnit.NANOSECONDS.timedWait(this, next - now);
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the metrics of the pipeline (e.g. "1200 outputs in 85 batches (14.1 per batch), 2 retries, 0 failed")
+     */
+    public String report() {
+        long b = batches.get();
+        return String.format("%d outputs in %d batches (%.1f per batch), %d retries, %d failed",
+                             outputs.get(), b, (b == 0) ? 0.0 : (double) outputs.get() / b,
+                             retries.get(), failed.get());
+    }
+}
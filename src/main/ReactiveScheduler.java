@@ -0,0 +1,179 @@
+/**
+ * @author Lyes Djemaa
+ * @version 1.0
+ *
+ * The class ReactiveScheduler
+ *
+ * It drives an Executor started with --mode reactive : instead of selecting reactions at random every --delay,
+ *  the executor follows the changes of its machines (@see Machine#pollChanges) and only attempts
+ *  the reactions whose inputs just became available
+ *
+ *  - one watcher thread per machine long-polls its changes and keeps a view of the units @see AvailabilityCache
+ *  - the reactions are indexed by the resources they consume, a change of R re-checks the reactions consuming R
+ *  - a reaction whose inputs are all available (as far as the view knows) is put once in the ready queue,
+ *    the workers take it from there @see Executor#runReactiveWorker
+ *
+ * a failed attempt is not queued again by itself : the abort or the consume that frees its units,
+ *  or the produce that brings them, is a change that queues it again
+ * a reaction without inputs (@see CommitPath#PRODUCE_ONLY) depends on no change, it is always ready :
+ *  it is queued again each time a worker takes it
+ */
+package main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.*;
+
+class ReactiveScheduler {
+
+    /**
+     * how long (ms) a poll waits on the machine when nothing changes
+     */
+    static final long FEED_WAIT = 1000;
+
+    private final Map<Resource, List<ReactionRule>> byInput = new HashMap<>();
+    private final Map<MachineService, List<Resource>> watched = new LinkedHashMap<>();
+    private final AvailabilityCache view;
+    private final BlockingQueue<ReactionRule> ready = new LinkedBlockingQueue<>();
+    private final Set<ReactionRule> queued = ConcurrentHashMap.newKeySet();
+    private final List<ReactionRule> sources = new ArrayList<>();
+    private final int retryDelay;
+    private static final Logger logger = Logger.getLogger(ReactiveScheduler.class.getName());
+
+    /**
+     * @param executor the executor whose reactions are scheduled
+     * @param retryDelay time (ms) before polling again a machine that could not be reached
+     */
+    ReactiveScheduler(Executor executor, int retryDelay) {
+        this.retryDelay = retryDelay;
+        this.view = new AvailabilityCache(ResourceRegistry.size(), 0);
+
+        for (ReactionRule rl : executor.getReactions()) {
+            if (executor.getCommitPath(rl) == CommitPath.PRODUCE_ONLY) {
+                sources.add(rl);
+                continue;
+            }
+            for (Resource R : rl.getToConsume().keySet()) {
+                byInput.computeIfAbsent(R, k -> new ArrayList<>()).add(rl);
+
+                MachineService stub = executor.locate(R);
+                if (stub == null) continue;
+                List<Resource> resources = watched.computeIfAbsent(stub, k -> new ArrayList<>());
+                if (!resources.contains(R)) resources.add(R);
+            }
+        }
+    }
+
+    /**
+     * start the watchers, the reactions get queued once their machine is read
+     */
+    void start() {
+        for (ReactionRule rl : sources) {
+            queued.add(rl);
+            ready.add(rl);
+        }
+
+        int i = 0;
+        for (Map.Entry<MachineService, List<Resource>> entry : watched.entrySet()) {
+            Resource[] resources = entry.getValue().toArray(new Resource[0]);
+            Thread watcher = new Thread(() -> watch(entry.getKey(), resources), "feed-" + (++i));
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+    }
+
+    /**
+     * @return the next reaction to attempt, waits until one is ready
+     */
+    ReactionRule next() throws InterruptedException {
+        while (true) {
+            ReactionRule rl = ready.take();
+            if (sources.contains(rl)) {
+                ready.add(rl);
+                return rl;
+            }
+            queued.remove(rl);
+            if (satisfiable(rl)) return rl;
+        }
+    }
+
+    /**
+     * follow the changes of one machine forever
+     *  the first poll, or a poll after falling behind, reads all the watched resources again
+     */
+    private void watch(MachineService stub, Resource[] resources) {
+        long cursor = -1;
+        while (true) {
+            try {
+                Changes changes = stub.pollChanges(cursor, FEED_WAIT);
+                long now = System.nanoTime();
+
+                if (!changes.isComplete()) {
+                    long[] cells = stub.quantities(resources);
+                    for (int i = 0; i < resources.length; ++i) {
+                        if (cells[i] >= 0) view.record(resources[i], cells[i], now);
+                    }
+                    for (Resource R : resources) {
+                        changed(R);
+                    }
+                }
+
+                Resource[] touched = changes.getResources();
+                long[] cells = changes.getCells();
+                for (int i = 0; i < touched.length; ++i) {
+                    view.record(touched[i], cells[i], now);
+                }
+                for (Resource R : touched) {
+                    changed(R);
+                }
+                cursor = changes.getNext();
+            }
+            catch (Exception e) {
+                logger.warning(() -> "Could not follow the changes of " + Arrays.toString(resources) + " : " + e);
+                cursor = -1;
+                try {
+                    TimeUnit.MILLISECONDS.sleep(retryDelay);
+                }
+                catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * queue the reactions consuming R that its new units made possible
+     */
+    private void changed(Resource R) {
+        List<ReactionRule> rules = byInput.get(R);
+        if (rules == null) return;
+
+        for (ReactionRule rl : rules) {
+            if (satisfiable(rl) && queued.add(rl)) {
+                ready.add(rl);
+            }
+        }
+    }
+
+    /**
+     * @return true if the view has enough units available for every input of rl (an unknown one is assumed enough)
+     */
+    private boolean satisfiable(ReactionRule rl) {
+        for (Map.Entry<Resource, Integer> e : rl.getToConsume().entrySet()) {
+            long cell = view.last(e.getKey());
+            if (cell != AvailabilityCache.UNKNOWN && Inventory.available(cell) < e.getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -5,23 +5,77 @@
  * This is the class Resource
  * It will give a minimal description of our resources.
  *  
+ * A Resource is sent in almost every call to a machine, so it is Externalizable :
+ *  only its name is written, without the field descriptors of the default serialization
+ * 
+ * Inside a JVM, a Resource also carries the dense id of its name @see ResourceRegistry
+ *  it is used as hash code and to index the arrays of Machine and Executor
+ *  a name received by a call (RMI or NIO) is only resolved if it is already known here @see received
  * 
  */
 
 package main;
 
-import java.io.Serializable;
-import java.util.Objects;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+public class Resource implements Externalizable {
 
-public class Resource implements Serializable {
+    private static final long serialVersionUID = 1L;
 
     /**
-     * Attribute for the name of the resource
+     * Attribute for the name of the resource, and its id in this JVM
      */
-    private final String name;
+    private String name;
+    private int id;
 
     public Resource(String name) {
         this.name = name;
+        this.id = ResourceRegistry.intern(name);
+    }
+
+    //getters
+    public int getId() { return this.id; }
+
+    /**
+     * Only used by the deserialization
+     */
+    public Resource() {}
+
+    /**
+     * the resource of a name received in a call, without interning it
+     *  the registry never shrinks : a peer sending names nobody declared here must not make it grow
+     *
+     * @param name the name read from the wire
+     * @return the resource, with the id the name already has in this JVM
+     * @throws InvalidObjectException if the name is unknown in this JVM
+     */
+    public static Resource received(String name) throws InvalidObjectException {
+        Resource R = new Resource();
+        R.resolve(name);
+        return R;
+    }
+
+    private void resolve(String name) throws InvalidObjectException {
+        int known = ResourceRegistry.lookup(name);
+        if (known < 0) {
+            throw new InvalidObjectException("Unknown resource " + name);
+        }
+        this.name = name;
+        this.id = known;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeUTF(this.name);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        resolve(in.readUTF());
     }
 
     @Override
@@ -32,11 +86,11 @@ public class Resource implements Serializable {
         if (this == o) return true;
         if (!(o instanceof Resource)) return false;
         Resource other = (Resource) o;
-        return Objects.equals(this.name, other.name);
+        return this.id == other.id;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(name);
+        return this.id;
     }
-}
\ No newline at end of file
+}
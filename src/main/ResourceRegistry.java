@@ -0,0 +1,74 @@
+/**
+ * @author Lyes Djemaa
+ * @version 1.0
+ * 
+ * The class ResourceRegistry
+ * 
+ * It interns the names of the resources known by this JVM and gives each one a dense int id (0, 1, 2, ...)
+ *  the hot structures of Machine and Executor are arrays indexed by this id instead of maps keyed by Resource,
+ *  the name is only kept for logs, configuration and the wire
+ * 
+ * Ids are local to a JVM : a machine and an executor may give different ids to the same resource,
+ *  which is why resources still travel by name @see Resource
+ */
+package main;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public final class ResourceRegistry {
+
+    private static final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private static volatile String[] names = new String[64];
+    private static int size = 0;
+
+    private ResourceRegistry() {}
+
+    /**
+     * @param name the name of a resource
+     * @return its id, a new one if the name was never seen
+     */
+    public static int intern(String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (ResourceRegistry.class) {
+            id = ids.get(name);
+            if (id != null) {
+                return id;
+            }
+            if (size == names.length) {
+                names = Arrays.copyOf(names, size * 2);
+            }
+            names[size] = name;
+            ids.put(name, size);
+            return size++;
+        }
+    }
+
+    /**
+     * @param name the name of a resource
+     * @return its id, -1 if the name was never interned : nothing is added, unlike intern
+     */
+    public static int lookup(String name) {
+        Integer id = ids.get(name);
+        return (id == null) ? -1 : id;
+    }
+
+    /**
+     * @param id an id given by intern
+     * @return the name of the resource
+     */
+    public static String nameOf(int id) {
+        return names[id];
+    }
+
+    /**
+     * @return the number of ids given, every id is below it
+     */
+    public static int size() {
+        return ids.size();
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * @author Lyes Djemaa
+ * @version 1.0
+ * 
+ * A small class RuleStats
+ * 
+ * the outcomes of the attempts of one reaction in an Executor @see SelectionPolicy
+ *  - the counters by AttemptResult and the total latency never decay
+ *  - score : the recent success rate, an exponential moving average of the commits (1 for a commit, 0 otherwise)
+ *            it starts at 1 so that every reaction gets attempted before being judged
+ * its getters are shown by the executor through JMX @see ExecutorMXBean#getRules
+ */
+package main;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class RuleStats {
+
+    /**
+     * weight of the last attempt in the score
+     */
+    public static final double DECAY = 0.1;
+
+    private final AtomicLongArray outcomes = new AtomicLongArray(AttemptResult.values().length);
+    private final AtomicLong latencyNanos = new AtomicLong();
+    private double score = 1.0;
+
+    /**
+     * record one attempt
+     * @param result how it ended
+     * @param nanos how long it took
+     */
+    public void record(AttemptResult result, long nanos) {
+        outcomes.incrementAndGet(result.ordinal());
+        latencyNanos.addAndGet(nanos);
+        synchronized (this) {
+            score += DECAY * (((result == AttemptResult.COMMITTED) ? 1.0 : 0.0) - score);
+        }
+    }
+
+    //getters
+    public synchronized double getScore() { return this.score; }
+    public long getCount(AttemptResult result) { return this.outcomes.get(result.ordinal()); }
+    public long getCommitted() { return getCount(AttemptResult.COMMITTED); }
+    public long getLocked() { return getCount(AttemptResult.LOCKED); }
+    public long getInsufficient() { return getCount(AttemptResult.INSUFFICIENT); }
+    public long getFailed() { return getCount(AttemptResult.FAILED); }
+
+    public long getAttempts() {
+        long total = 0;
+        for (int i = 0; i < outcomes.length(); ++i) total += outcomes.get(i);
+        return total;
+    }
+
+    /**
+     * @return the mean latency of an attempt in milliseconds, 0 before the first one
+     */
+    public double getMeanLatencyMillis() {
+        long attempts = getAttempts();
+        return (attempts == 0) ? 0 : latencyNanos.get() / 1e6 / attempts;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d attempts, %d committed, %d locked, %d insufficient, %d failed, %.1f ms, score %.2f",
+                             getAttempts(), getCount(AttemptResult.COMMITTED), getCount(AttemptResult.LOCKED),
+                             getCount(AttemptResult.INSUFFICIENT), getCount(AttemptResult.FAILED),
+                             getMeanLatencyMillis(), getScore());
+    }
+}
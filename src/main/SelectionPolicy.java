@@ -0,0 +1,126 @@
+/**
+ * @author Lyes Djemaa
+ * @version 1.0
+ * 
+ * The interface SelectionPolicy
+ * 
+ * It chooses which reaction an Executor attempts next @see Executor#selectReaction
+ *  the executor reports the outcome of every attempt, so a policy can favour the reactions currently succeeding
+ * 
+ * Two policies are given :
+ *  - "uniform" : every candidate has the same chance, whatever its past
+ *  - "greedy" : epsilon-greedy, with probability epsilon a candidate at random (to notice the reactions recovering),
+ *               otherwise the candidate with the best recent success rate @see RuleStats
+ */
+package main;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public abstract class SelectionPolicy {
+
+    /**
+     * the stats of every reaction of the executor, the map is filled once by the constructor
+     */
+    protected final Map<ReactionRule, RuleStats> stats = new IdentityHashMap<>();
+    protected final Random rng;
+
+    protected SelectionPolicy(ReactionRule[] reactions, Random rng) {
+        this.rng = rng;
+        for (ReactionRule rl : reactions) {
+            stats.put(rl, new RuleStats());
+        }
+    }
+
+    /**
+     * @param candidates the reactions that may be attempted, not empty
+     * @return the one to attempt
+     */
+    public abstract ReactionRule select(List<ReactionRule> candidates);
+
+    /**
+     * report the outcome of an attempt of rl
+     */
+    public void record(ReactionRule rl, AttemptResult result, long nanos) {
+        RuleStats s = stats.get(rl);
+        if (s != null) s.record(result, nanos);
+    }
+
+    //getters
+    public Map<ReactionRule, RuleStats> getStats() { return this.stats; }
+
+    /**
+     * @return one line per reaction with its stats
+     */
+    public String report() {
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<ReactionRule, RuleStats> e : stats.entrySet()) {
+            result.append(System.lineSeparator()).append("    ").append(e.getKey()).append(" : ").append(e.getValue());
+        }
+        return result.toString();
+    }
+
+    /**
+     * @param name "uniform" or "greedy"
+     * @param epsilon the exploration rate of "greedy"
+     * @return the policy
+     * @throws IllegalArgumentException for an unknown name
+     */
+    public static SelectionPolicy of(String name, ReactionRule[] reactions, double epsilon, Random rng) {
+        switch (name) {
+            case "uniform": return new Uniform(reactions, rng);
+            case "greedy": return new EpsilonGreedy(reactions, rng, epsilon);
+            default: throw new IllegalArgumentException("Unknown policy " + name + ", expected uniform or greedy");
+        }
+    }
+
+    static class Uniform extends SelectionPolicy {
+
+        Uniform(ReactionRule[] reactions, Random rng) {
+            super(reactions, rng);
+        }
+
+        @Override
+        public ReactionRule select(List<ReactionRule> candidates) {
+            return candidates.get(rng.nextInt(candidates.size()));
+        }
+    }
+
+    static class EpsilonGreedy extends SelectionPolicy {
+        private final double epsilon;
+
+        EpsilonGreedy(ReactionRule[] reactions, Random rng, double epsilon) {
+            super(reactions, rng);
+            this.epsilon = epsilon;
+        }
+
+        /**
+         * the best score wins, ties are broken at random so equal reactions share the attempts
+         */
+        @Override
+        public ReactionRule select(List<ReactionRule> candidates) {
+            if (rng.nextDouble() < epsilon) {
+                return candidates.get(rng.nextInt(candidates.size()));
+            }
+
+            ReactionRule best = null;
+            double bestScore = -1;
+            int ties = 0;
+            for (ReactionRule rl : candidates) {
+                RuleStats s = stats.get(rl);
+                double score = (s == null) ? 1.0 : s.getScore();
+                if (score > bestScore) {
+                    best = rl;
+                    bestScore = score;
+                    ties = 1;
+                }
+                else if (score == bestScore && rng.nextInt(++ties) == 0) {
+                    best = rl;
+                }
+            }
+            return best;
+        }
+    }
+}
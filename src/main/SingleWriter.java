@@ -0,0 +1,211 @@
+/**
+ * @author Lyes Djemaa
+ * @version 1.0
+ *
+ * The class SingleWriter
+ *
+ * It applies every change of a Machine from one thread, when it is started with --writer single @see Machine
+ *
+ * <p>
+ * The RMI and NIO threads don't change the inventory themselves : each request is put in a ring of operations
+ *  and its caller waits. The writer thread drains the ring by batches, applies the operations one after the other
+ *  and wakes their callers, so the cells, the leases and the log are only changed by one thread and the atomics
+ *  and monitors guarding them are never contended, however many executors call the machine
+ *
+ * ring := capacity slots (a power of 2), a caller takes the next sequence, waits while the ring is full,
+ *  then publishes its operation in the slot of the sequence. The writer takes the slots in sequence order,
+ *  as many as are published in a row (a batch), and frees each one before moving on
+ *
+ * An operation does not wait for the disk on the writer thread : the position of its last record is kept
+ *  with it (@see defer) and its caller waits for it once woken, while the writer goes on with the next ones
+ * </p>
+ */
+package main;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+
+public class SingleWriter {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * an operation in the ring
+     *  - caller : the thread waiting for it, null for an operation nobody waits for @see execute
+     *  - lsn : the position of its last record in the log, -1 if it wrote none
+     */
+    private static final class Operation<T> {
+        final Supplier<T> body;
+        final Thread caller;
+        T result;
+        Throwable failure;
+        long lsn = -1;
+        volatile boolean done = false;
+
+        Operation(Supplier<T> body, Thread caller) {
+            this.body = body;
+            this.caller = caller;
+        }
+    }
+
+    private final AtomicReferenceArray<Operation<?>> ring;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final LongConsumer durable;
+    private final Thread writer;
+
+    /**
+     * written by the writer only
+     *  - head : the sequence of the next operation to apply
+     *  - current : the operation being applied
+     *  - sleeping : the writer found the ring empty and parks until a caller unparks it
+     */
+    private volatile long head = 0;
+    private Operation<?> current;
+    private volatile boolean sleeping = false;
+
+    private final AtomicLong operations = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private volatile int largestBatch = 0;
+
+    /**
+     * @param capacity number of slots of the ring, rounded up to a power of 2
+     * @param durable waits until the record at a position is on the disk, run by the callers @see Machine#durable
+     * @throws IllegalArgumentException if capacity is not positive
+     */
+    public SingleWriter(int capacity, LongConsumer durable) {
+        if (capacity < 1) throw new IllegalArgumentException("The ring needs at least one slot");
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        this.ring = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.durable = durable;
+
+        this.writer = new Thread(this::drainLoop, "machine-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    //getters
+    public long getOperations() { return this.operations.get(); }
+    public long getBatches() { return this.batches.get(); }
+    public int getLargestBatch() { return this.largestBatch; }
+
+    /**
+     * @return true if the current thread is the writer, an operation run on it applies directly
+     */
+    public boolean isWriter() {
+        return Thread.currentThread() == this.writer;
+    }
+
+    /**
+     * apply body on the writer and wait for it, then for the records it wrote
+     *
+     * @return what body returned
+     * @throws RuntimeException what body threw, an Error is thrown as is
+     */
+    public <T> T call(Supplier<T> body) {
+        Operation<T> op = new Operation<>(body, Thread.currentThread());
+        publish(op);
+        while (!op.done) {
+            LockSupport.park(op);
+        }
+        if (op.failure instanceof RuntimeException) throw (RuntimeException) op.failure;
+        if (op.failure instanceof Error) throw (Error) op.failure;
+        if (op.failure != null) throw new IllegalStateException("Machine writer", op.failure);
+        durable.accept(op.lsn);
+        return op.result;
+    }
+
+    /**
+     * apply body on the writer, without waiting for it (e.g. the expiry of a lease)
+     */
+    public void execute(Runnable body) {
+        publish(new Operation<>(() -> { body.run(); return null; }, null));
+    }
+
+    /**
+     * called on the writer by an operation instead of waiting for the disk : its caller will wait for lsn
+     */
+    public void defer(long lsn) {
+        if (current != null) current.lsn = Math.max(current.lsn, lsn);
+    }
+
+    private void publish(Operation<?> op) {
+        long sequence = tail.getAndIncrement();
+        while (sequence - head >= ring.length()) {
+            // full : the writer frees the slots as it takes them
+            if (sleeping) LockSupport.unpark(writer);
+            LockSupport.parkNanos(1000);
+        }
+        ring.set((int) sequence & mask, op);
+        if (sleeping) LockSupport.unpark(writer);
+    }
+
+    /**
+     * the loop of the writer : apply the operations published in a row, wake their callers, and again
+     */
+    private void drainLoop() {
+        Operation<?>[] batch = new Operation<?>[ring.length()];
+        while (true) {
+            int size = 0;
+            long sequence = head;
+            Operation<?> op;
+            while (size < batch.length && (op = ring.get((int) sequence & mask)) != null) {
+                ring.set((int) sequence & mask, null);
+                batch[size++] = op;
+                ++sequence;
+            }
+
+            if (size == 0) {
+                sleeping = true;
+                if (ring.get((int) sequence & mask) == null) {
+                    LockSupport.park(this);
+                }
+                sleeping = false;
+                continue;
+            }
+            head = sequence;
+            operations.addAndGet(size);
+            batches.incrementAndGet();
+            if (size > largestBatch) largestBatch = size;
+
+            for (int i = 0; i < size; ++i) {
+                apply(batch[i]);
+                batch[i] = null;
+            }
+        }
+    }
+
+    /**
+     * apply one operation, whatever it throws is handed to its caller : an Error must not end the writer,
+     *  the callers queued behind it would wait forever
+     */
+    private <T> void apply(Operation<T> op) {
+        current = op;
+        try {
+            op.result = op.body.get();
+        }
+        catch (Throwable e) {
+            op.failure = e;
+            if (op.caller == null || e instanceof Error) System.err.println("Machine writer : " + e);
+        }
+        finally {
+            current = null;
+        }
+        op.done = true;
+        if (op.caller != null) LockSupport.unpark(op.caller);
+    }
+
+    /**
+     * @return the metrics of the writer (e.g. "52000 operations in 4100 batches (12.7 per batch, max 64)")
+     */
+    public String report() {
+        long b = batches.get();
+        return String.format("%d operations in %d batches (%.1f per batch, max %d)",
+                             operations.get(), b, (b == 0) ? 0.0 : (double) operations.get() / b, largestBatch);
+    }
+}
@@ -4,63 +4,78 @@
  * 
  * Our class SlaveConsumer,
  * <p>
- * It will serve Executor by check/consume/abort on resource
+ * It will serve Executor by check/consume/abort on the resources of one machine
+ *  all the resources of a reaction located on the same machine are handled by the same slave,
+ *  so the machine is contacted once per phase (tryToAll then commitAndProduce/abortAll)
  * 
  * 
- * Also it will communicate with its executor throught TCP protocol which will be detailed below :
- *  -Slave and Executor start by establish a connection
- *  -As soon as Executor create Slave, it make it start then accept its connection, the Slave has now finish its constructor method
- *  -if the resource is free, locks it immedialety and it send "YES" to the executor 
+ * Also it will communicate with its executor throught an in-memory link (@see ExecutorSlaveLink), the protocol is detailed below :
+ *  -As soon as Executor create Slave, it hands it a fresh link then make it start
+ *  -if another slave already voted "NO" and the executor aborted, it does not even contact its machine
+ *  -if all its resources have the units needed, reserves them immedialety and it send "YES" to the executor 
  *  -then, it waits for a message from Executor to make a decision
  *  -After receiving the message from the Executor, two message are possible : 
- *          - If the executor sends commit, it consume the resource then release the resource
- *          - If the executor sends abort, it give up on the resource by release the resource
+ *          - If the executor sends commit, it consume the resources then release them,
+ *            the outputs of the reaction stored on the same machine are added by the same call
+ *          - If the executor sends abort, it give up on the resources by release them
+ *            the decision may come before our own vote, a reservation landing after it is released at once
  *  
  * </p>
  * 
- * The resource producted by the reaction will be handled by the parent as we want no duplicated production
+ * The resource producted by the reaction on the other machines will be handled by the parent as we want no duplicated production
  */
 
 package main;
 
-import java.net.*;
-import java.io.*;
+import java.util.Map;
 import java.util.logging.*;
 
 public class SlaveConsumer implements Runnable {
 
     /**
      * four attribute :
-     *      - resource : the resource we want to operate on
-     *      - units : number of units we require
-     *      - parent : socket to communicate with parent executor
-     *      - port : port used by parent
+     *      - tx : the id of the transaction the slave takes part in
+     *      - demand : the resources we want to operate on with the units we require
+     *      - outputs : the resources of the reaction produced on the same machine, added with the commit
+     *      - parent : link to exchange the vote and the decision with parent executor
      *      - stub : the stub that will able operation on the machine
+     *      - cache : the cache of the parent, told when the machine lacks units, may be null @see AvailabilityCache
      *      - logger : a logger
      */
-    private final Resource R;
-    private final int units;
-    private final Socket parent;
-    private final int port;
+    private final long tx;
+    private final Map<Resource, Integer> demand;
+    private final Map<Resource, Integer> outputs;
+    private final ExecutorSlaveLink parent;
     private final MachineService stub;
+    private final AvailabilityCache cache;
     private static final Logger logger = Logger.getLogger(SlaveConsumer.class.getName());
     
     /**
      * The constructor of the class
-     * All slave are created on the same device of their parent Executor 
-     * So it connects locally on the port specified
+     * All slave are created in the same JVM of their parent Executor 
+     * So they share the link with it instead of connecting to a socket
      * 
-     * @param R the resource we will try to operate on
-     * @param units the units we will try to consume
-     * @param port the port of the parent socket for communicate during the 2PC
-     * @param stub to operate on the resource contained by the machine
+     * @param tx the id of the transaction, given by the parent @see Executor#nextTransaction
+     * @param demand the resources of one machine we will try to consume with their units
+     * @param stub to operate on the resources contained by the machine
+     * @param parent the link for communicate with the parent during the 2PC
      */
-    public SlaveConsumer( Resource R, int units, MachineService stub, int port) throws IOException {
-        this.R = R;
-        this.units = units;
-        this.port = port;
-        parent = new Socket("127.0.0.1", port);
+    public SlaveConsumer( long tx, Map<Resource, Integer> demand, MachineService stub, ExecutorSlaveLink parent) {
+        this(tx, demand, Map.of(), stub, parent, null);
+    }
+
+    /**
+     * @param outputs the resources produced on the same machine by the reaction, with their units
+     * @param cache the cache of the parent, its entries for demand are forgotten on INSUFFICIENT
+     */
+    SlaveConsumer( long tx, Map<Resource, Integer> demand, Map<Resource, Integer> outputs, MachineService stub,
+                   ExecutorSlaveLink parent, AvailabilityCache cache) {
+        this.tx = tx;
+        this.demand = demand;
+        this.outputs = outputs;
+        this.parent = parent;
         this.stub = stub; 
+        this.cache = cache;
     }
 
     /**
@@ -71,76 +86,84 @@ public class SlaveConsumer implements Runnable {
     @Override
     public void run() {
         try {
+            if (parent.decision.isDone()) {
+                logger.info(() -> "SlaveConsumer " + Executor.txName(this.tx) + " for resources " + this.demand.keySet() 
+                                    + " Aborted before checking them");
+                parent.applied.complete(true);
+                return;
+            }
 
-            ObjectOutputStream output = new ObjectOutputStream(parent.getOutputStream());
-            output.flush();
-
-            ObjectInputStream input = new ObjectInputStream(parent.getInputStream()); 
-            
-            logger.fine(() -> "SlaveConsumer checking for resource " 
-                                + this.R + " (" + this.units + " units)...");
+            logger.fine(() -> "SlaveConsumer " + Executor.txName(this.tx) + " checking for resources " 
+                                + this.demand + "...");
 
-            String state = this.stub.tryTo(this.R, this.units); 
+            Status state = Status.of(this.stub.tryToAll(this.tx, this.demand)); 
 
-            boolean tried = (state.equals("reserved") ) ? 
-                                                     true:
-                                                     false;
+            boolean tried = (state == Status.RESERVED);
+            if (state == Status.INSUFFICIENT && this.cache != null) {
+                for (Resource R : this.demand.keySet()) {
+                    this.cache.invalidate(R);
+                }
+            }
             
-            logger.fine(() -> "SlaveConsumer tried to access  " + this.R 
-                                + " for " + this.units + " units,"
+            logger.fine(() -> "SlaveConsumer " + Executor.txName(this.tx) + " tried to access  " + this.demand 
                                 + " response : " + state);
 
 
-            if(state.equals("reserved"))
-                logger.info( () -> "SlaveConsumer for " + this.R
-                                    + " locked the resource");
+            if(tried)
+                logger.info( () -> "SlaveConsumer " + Executor.txName(this.tx) + " for " + this.demand.keySet()
+                                    + " locked the resources");
                                                          
             else 
-                logger.info( () -> "SlaveConsumer for " + this.R 
-                                    + " could not lock the resource");
+                logger.info( () -> "SlaveConsumer " + Executor.txName(this.tx) + " for " + this.demand.keySet() 
+                                    + " could not lock the resources (" + state + ")");
 
             String ready = (tried == true) ? 
                                              "YES" :
                                              "NO" ;
-            output.writeObject(ready);
-            output.flush();
+            parent.status = state;
+            parent.vote.complete(ready);
 
-            String action = (String) input.readObject();
+            String action = parent.decision.get();
 
             switch(action) {
 
                 case "COMMIT":
-                    stub.consume(this.R, this.units);
-                    logger.info(() -> "SlaveConsumer for resource " + this.R  
-                                        + " Commited, consumed it and released the lock");
+                    Status committed = Status.of(stub.commitAndProduce(this.tx, this.demand, this.outputs));
+                    if (committed == Status.CONSUMED) {
+                        logger.info(() -> "SlaveConsumer " + Executor.txName(this.tx) + " for resources " + this.demand.keySet()  
+                                            + " Commited, consumed them and released the locks"
+                                            + (this.outputs.isEmpty() ? "" : ", produced " + this.outputs));
+                    }
+                    else {
+                        logger.warning(() -> "SlaveConsumer " + Executor.txName(this.tx) + " for resources " + this.demand.keySet()  
+                                            + " Commit refused (" + committed + "), the lease expired or the machine has no trace of it");
+                        parent.refused = committed;
+                    }
                     break;
 
                 case "ABORT":
-                    if(state.equals("reserved")) {
-                        stub.abort(this.R);
-                        logger.info(() -> "SlaveConsumer for resource " + this.R 
-                                            + " Aborted, did not consumed it and released the lock then aborted");
+                    if(tried) {
+                        stub.abortAll(this.tx, this.demand);
+                        logger.info(() -> "SlaveConsumer " + Executor.txName(this.tx) + " for resources " + this.demand.keySet() 
+                                            + " Aborted, did not consumed them and released the locks then aborted");
                     }
 
-                    else logger.info(() -> "SlaveConsumer for resource " + this.R + " Aborted");
+                    else logger.info(() -> "SlaveConsumer " + Executor.txName(this.tx) + " for resources " + this.demand.keySet() + " Aborted");
                     break;
 
                 default:
             }
+            parent.applied.complete(parent.refused == null);
 
         }
         catch(Exception e) {
             System.err.println(e);
         }
         finally {
-
-            try{
-                this.parent.close();
-                logger.fine(() -> "SlaveConsumer for resource : "+ this.R + " off");
-            } catch (Exception e) {
-                System.err.println(e);
-            }
-
+            // never leave the executor waiting for a vote that will not come
+            this.parent.vote.complete("NO");
+            this.parent.applied.complete(false);
+            logger.fine(() -> "SlaveConsumer " + Executor.txName(this.tx) + " for resources : "+ this.demand.keySet() + " off");
         }
 
     }
@@ -1,64 +1,119 @@
 /**
- * 
+ *
  * @author Lyes
  * @version 1.0
- * 
+ *
  * This is our class SlaveProducer,
  * <p>
- * it will simply add some Resource and die through stub of the machine implicated
+ * it will simply add a batch of Resources and die through stub of the machine implicated
+ *  the batch holds the outputs of many reactions, coalesced by the ProductionPipeline of the executor
+ *  @see ProductionPipeline
+ *
+ * a call failed on the way (RemoteException) is tried again until the machine applied the batch, with a growing
+ *  wait (up to MAX_RETRY_MILLIS), always with the same batch id : if the units were added but the answer was lost,
+ *  the machine ignores the retry @see Machine#produceAll. The outputs belong to committed reactions, they are not
+ *  dropped for a machine out of reach : meanwhile the next outputs for the machine wait in the pipeline,
+ *  one batch per machine being in flight
+ * a call refused by the machine itself (e.g. a resource it does not store) would be refused again,
+ *  the batch is given up and its outputs are told they were not produced
  * </p>
- * 
+ *
  */
 package main;
 
 
-import java.net.*;
-import java.io.*;
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.*;
 
 public class SlaveProducer implements Runnable {
     /**
-     * Our class contains 3 attributes :
-     *      - R : the resource we produce
-     *      - units : the number of units we are adding
-     *      - stub : to operate on the Resource contained by the machine
+     * Our class contains these attributes :
+     *      - batch : the id of the batch, the same for every retry
+     *      - units : the units of each resource we are adding
+     *      - stub : to operate on the Resources contained by the machine
      *      - logger : a logger
-     *      - id : the port of the Executor parent 
+     *      - id : the port of the Executor parent
+     *      - produced : completed with true once the machine added the units, false if the sender gave up before
+     *      - retries : number of calls tried again
+     *      - applied : the machine added the units (or had added them already)
      */
-    private final Resource R;
-    private final int units;
+    private final long batch;
+    private final Map<Resource, Integer> units;
     private final MachineService stub;
     private static final Logger logger = Logger.getLogger(SlaveProducer.class.getName());
     private final int id;
+    private final List<CompletableFuture<Boolean>> produced;
+    private int retries = 0;
+    private volatile boolean applied = false;
+
+    /**
+     * the wait (ms) before the first retry, doubled each time up to MAX_RETRY_MILLIS
+     */
+    public static final long RETRY_MILLIS = 50;
+    public static final long MAX_RETRY_MILLIS = 5000;
 
     /**
      * Initialize our SlaveProducer
-     * 
-     * @param R the resource we produce
-     * @param units the number of units we are adding
-     * @param stub to operate on the Resource contained by the machine
+     *
+     * @param batch the id of the batch, unique among all executors
+     * @param units the units of each resource we are adding
+     * @param stub to operate on the Resources contained by the machine
+     * @param port the port of the executor
+     * @param produced told whether the units were added, one per output of the batch
      */
-    public SlaveProducer(Resource R, int units, MachineService stub, int port) throws IOException {
-        this.R = R;
+    SlaveProducer(long batch, Map<Resource, Integer> units, MachineService stub, int port,
+                  List<CompletableFuture<Boolean>> produced) {
+        this.batch = batch;
         this.units = units;
         this.stub = stub;
         this.id = port;
+        this.produced = produced;
     }
+
+    //getters
+    public int getRetries() { return this.retries; }
+    public boolean isApplied() { return this.applied; }
+
     /**
      * method that performs the producing step from 2PC
      */
     @Override
     public void run() {
         try {
-            logger.info(() -> "SlaveProducer"+this.id + " start producing " 
-                                + this.units + " of " + this.R);
-            this.stub.produce(this.R, this.units);
-            logger.info(() -> "SlaveProducer"+this.id + " produced " 
-                                + this.units + " of " + this.R);
-        } 
-        catch(Exception e) {
-            System.err.println(e);
+            long wait = RETRY_MILLIS;
+            for (int attempt = 1; !this.applied; ++attempt) {
+                try {
+                    logger.info(() -> "SlaveProducer"+this.id + " start producing batch "
+                                        + this.batch + " " + this.units);
+                    boolean fresh = this.stub.produceAll(this.batch, this.units);
+                    logger.info(() -> "SlaveProducer"+this.id + " produced batch " + this.batch
+                                        + (fresh ? "" : " (applied already)"));
+                    this.applied = true;
+                }
+                catch (RemoteException e) {
+                    System.err.println("SlaveProducer" + this.id + " could not produce batch " + this.batch
+                                       + " (attempt " + attempt + "), trying again in " + wait + " ms : " + e);
+                    ++this.retries;
+                    TimeUnit.MILLISECONDS.sleep(wait);
+                    wait = Math.min(2 * wait, MAX_RETRY_MILLIS);
+                }
+            }
+        }
+        catch (RuntimeException e) {
+            System.err.println("SlaveProducer" + this.id + " gave up batch " + this.batch + " " + this.units + " : " + e);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            for (CompletableFuture<Boolean> output : this.produced) {
+                output.complete(this.applied);
+            }
         }
 
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,40 @@
+/**
+ * @author Lyes Djemaa
+ * @version 1.0
+ * 
+ * The enum Status
+ * 
+ * It lists the answers of a Machine to a reservation (tryTo, tryToAll) and to a commit (commitAndProduce)
+ *  on the wire a Status travels as its int code, far smaller than a String or a serialized enum
+ * 
+ *  - RESERVED : the units were reserved
+ *  - LOCKED : not enough units available, but there would be once other transactions release their reservations
+ *  - INSUFFICIENT : not enough units at all
+ *  - PROBLEM : the machine could not answer
+ *  - TIMEOUT : the units stayed held by other transactions during the whole wait @see Machine#tryToWait
+ *  - CONSUMED : the units were consumed at once, without reservation @see Machine#commitOnePhase
+ *              or the commit is applied, now or by an earlier call @see Machine#commitAndProduce
+ *  - EXPIRED : the commit came after the lease of the transaction expired, nothing was consumed
+ *  - UNKNOWN : the machine has no trace of the transaction (no lease, not among its recent commits nor expiries),
+ *              it can't tell whether the commit was applied
+ */
+package main;
+
+public enum Status {
+    RESERVED, LOCKED, INSUFFICIENT, PROBLEM, TIMEOUT, CONSUMED, EXPIRED, UNKNOWN;
+
+    private static final Status[] BY_CODE = values();
+
+    /**
+     * @return the code sent on the wire
+     */
+    public int code() { return ordinal(); }
+
+    /**
+     * @param code a code received from the wire
+     * @return the matching Status, PROBLEM for an unknown code
+     */
+    public static Status of(int code) {
+        return (code >= 0 && code < BY_CODE.length) ? BY_CODE[code] : PROBLEM;
+    }
+}
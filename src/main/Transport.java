@@ -0,0 +1,56 @@
+/**
+ * @author Lyes Djemaa
+ * @version 1.0
+ * 
+ * The enum Transport
+ * 
+ * It chooses how an Executor reaches the machines, once their RMI stubs are found in the registry
+ *  - RMI : calls go through the stub itself, one blocking request per call
+ *  - NIO : calls go through a NioMachineClient connected to the NioMachineServer of the machine,
+ *          many requests in flight on a single connection @see NioProtocol
+ */
+package main;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+public enum Transport {
+
+    RMI {
+        @Override
+        public MachineService connect(MachineService stub) {
+            return stub;
+        }
+    },
+
+    NIO {
+        @Override
+        public MachineService connect(MachineService stub) throws IOException {
+            InetSocketAddress endpoint = stub.nioEndpoint();
+            if (endpoint == null) {
+                throw new IllegalArgumentException("Machine " + stub.enumResource() + " was not started with --nioPort");
+            }
+            return new NioMachineClient(endpoint, stub);
+        }
+    };
+
+    /**
+     * @param stub the RMI stub of a machine found in the registry
+     * @return the MachineService the executor will use to reach this machine
+     * @throws IOException if the machine can't be reached
+     */
+    public abstract MachineService connect(MachineService stub) throws IOException;
+
+    /**
+     * @param name "rmi" or "nio"
+     * @return the matching transport
+     * @throws IllegalArgumentException
+     */
+    public static Transport of(String name) {
+        switch (name) {
+            case "rmi": return RMI;
+            case "nio": return NIO;
+            default: throw new IllegalArgumentException("Unknown transport : " + name + " (expected: rmi or nio)");
+        }
+    }
+}
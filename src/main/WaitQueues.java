@@ -0,0 +1,142 @@
+/**
+ * @author Lyes Djemaa
+ * @version 1.0
+ *
+ * The class WaitQueues
+ *
+ * It lets a reservation wait for units held by other transactions instead of answering LOCKED at once
+ *  @see Machine#tryToWait
+ *
+ * each resource has a FIFO queue of waiters guarded by its own monitor :
+ *  - only the head of the queue tries to reserve, the others wait their turn (no barging between waiters)
+ *  - a waiter leaves with RESERVED, with INSUFFICIENT as soon as the units are gone for good,
+ *    or with TIMEOUT once its budget is spent
+ *  - the Machine calls signal after every change giving back or dropping units (consume, abort, produce, expiry)
+ *
+ * A plain tryTo does not queue, it only gets the units if they are available when it asks
+ * The queue of a resource and its monitor are only created the first time someone waits on it,
+ *  a machine of a million resources does not pay for queues nobody uses
+ *
+ * metrics : number of waits, timeouts, total time waited, current and highest queue length
+ */
+package main;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+class WaitQueues {
+
+    private final Inventory inventory;
+    private final AtomicReferenceArray<ArrayDeque<Object>> queues;
+    private final AtomicIntegerArray lengths;
+
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong waitedNanos = new AtomicLong();
+    private final AtomicLong longestQueue = new AtomicLong();
+
+    WaitQueues(Inventory inventory) {
+        this.inventory = inventory;
+        this.queues = new AtomicReferenceArray<>(inventory.capacity());
+        this.lengths = new AtomicIntegerArray(inventory.capacity());
+    }
+
+    /**
+     * @return the queue of the resource id, created on first use, it is also the monitor guarding itself
+     */
+    private ArrayDeque<Object> queue(int id) {
+        ArrayDeque<Object> queue = queues.get(id);
+        if (queue == null) {
+            queues.compareAndSet(id, null, new ArrayDeque<>());
+            queue = queues.get(id);
+        }
+        return queue;
+    }
+
+    //getters
+    long getWaits() { return this.waits.get(); }
+    long getTimeouts() { return this.timeouts.get(); }
+    long getLongestQueue() { return this.longestQueue.get(); }
+
+    /**
+     * @return the waiters queued right now, all resources together
+     */
+    int getQueued() {
+        int queued = 0;
+        for (int id = 0; id < lengths.length(); ++id) queued += lengths.get(id);
+        return queued;
+    }
+
+    /**
+     * @return the mean time (ms) a waiter stayed in its queue, 0 before the first wait
+     */
+    double getMeanWaitMillis() {
+        long count = waits.get();
+        return (count == 0) ? 0 : waitedNanos.get() / 1e6 / count;
+    }
+
+    /**
+     * reserve n units of the resource id, waiting up to waitMillis for units held by other transactions
+     *
+     * @return RESERVED, INSUFFICIENT or TIMEOUT
+     */
+    Status reserve(int id, int n, long waitMillis) throws InterruptedException {
+        // nobody waiting : no turn to respect
+        if (lengths.get(id) == 0 && inventory.reserve(id, n)) {
+            return Status.RESERVED;
+        }
+
+        ArrayDeque<Object> queue = queue(id);
+        Object me = new Object();
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+
+        synchronized (queue) {
+            queue.addLast(me);
+            longestQueue.accumulateAndGet(lengths.incrementAndGet(id), Math::max);
+            try {
+                while (true) {
+                    if (queue.peekFirst() == me) {
+                        if (inventory.reserve(id, n)) {
+                            return Status.RESERVED;
+                        }
+                        long cell = inventory.cell(id);
+                        if (Inventory.available(cell) + Inventory.reserved(cell) < n) {
+                            return Status.INSUFFICIENT;
+                        }
+                    }
+
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        timeouts.incrementAndGet();
+                        return Status.TIMEOUT;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(queue, remaining);
+                }
+            }
+            finally {
+                queue.remove(me);
+                lengths.decrementAndGet(id);
+                waits.incrementAndGet();
+                waitedNanos.addAndGet(System.nanoTime() - start);
+                // the next one may be the head now
+                queue.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * the units of the resource id changed, wake its waiters if any
+     */
+    void signal(int id) {
+        if (lengths.get(id) > 0) {
+            ArrayDeque<Object> queue = queue(id);
+            synchronized (queue) {
+                queue.notifyAll();
+            }
+        }
+    }
+}
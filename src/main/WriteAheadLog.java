@@ -0,0 +1,535 @@
+/**
+ * @author Lyes Djemaa
+ * @version 1.0
+ *
+ * The class WriteAheadLog
+ *
+ * It makes the inventory of a Machine durable : every change is appended to a log before being acknowledged,
+ *  and the log is replayed when the machine starts again @see Machine(Map, long, WriteAheadLog)
+ *
+ * <p>
+ * The log is a directory of memory-mapped segments (wal-000000.log, wal-000001.log, ...) of a fixed size
+ *  a record := [int length][int crc32][byte type][long tx][short count] count * ([short length][name][int units])
+ *  a length of 0 marks the end of the log, a bad crc a record torn by a crash (it and the rest are ignored)
+ *
+ * The records are deltas (DECLARE, RESERVE, CONSUME, ABORT, PRODUCE, TAKE), their effects add up in any order,
+ *  so the threads of the machine append them without agreeing on an order. The Machine only takes care that
+ *  units are never used before being logged : PRODUCE and ABORT (giving units) are appended before their
+ *  effect, RESERVE, CONSUME and TAKE (taking units) after it
+ *  TAKE is a one-phase commit, units consumed straight from the available ones @see Machine#commitOnePhase
+ *  a PRODUCE of a batch carries its id in place of the transaction, a batch replayed is still known as applied
+ *  a CONSUME or TAKE flagged with OUTPUTS is followed by a second count and the units produced by the same call
+ *  @see Machine#commitAndProduce : inputs and outputs are replayed together or not at all
+ *
+ * Group commit : append only copies the record in the mapped segment and returns its position,
+ *  a flusher thread forces the segments to the disk over and over, every force covering all the records
+ *  appended meanwhile. A caller waits (await) for the force covering its record before answering,
+ *  so many calls share one fsync
+ *
+ * Checkpoint : the state rebuilt by the records before a position (a Recovery) can be saved elsewhere
+ *  @see InventorySnapshot, the segments wholly before it are then deleted (truncate) and the log is opened
+ *  again from that state, replaying only the records after it. Without checkpoint every segment is kept
+ * </p>
+ */
+package main;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+public class WriteAheadLog implements Closeable {
+
+    //types of record
+    public static final byte DECLARE = 0;
+    public static final byte RESERVE = 1;
+    public static final byte CONSUME = 2;
+    public static final byte ABORT = 3;
+    public static final byte PRODUCE = 4;
+    public static final byte TAKE = 5;
+
+    /**
+     * or-ed with the type, the record also holds the units produced with it
+     */
+    public static final byte OUTPUTS = 0x40;
+
+    public static final int DEFAULT_SEGMENT_SIZE = 16 << 20;
+
+    /**
+     * what the replay of the log rebuilt
+     *  - units : for each resource declared, its units available and reserved
+     *  - held : for each transaction still holding reservations, the units it holds
+     *  - batches : the highest batch produced by each sender (the prefix of the id), the least recent sender first
+     *              a batch of a recovery is kept on its own @see Machine#batchKey
+     *              @see Machine#produceAll
+     *  - commits : the last transactions committed (CONSUME), oldest first @see Machine#commitAndProduce
+     *  - records : the number of records applied, checkpoint included
+     *  - position : the position after the last record applied, where the replay goes on @see catchUp
+     */
+    public static class Recovery {
+        public final Map<Resource, int[]> units = new LinkedHashMap<>();
+        public final Map<Long, Map<Resource, Integer>> held = new HashMap<>();
+        public final LinkedHashMap<Long, Long> batches = new LinkedHashMap<>();
+        public final ArrayDeque<Long> commits = new ArrayDeque<>();
+        public long records = 0;
+        public long position = 0;
+
+        public boolean isEmpty() { return records == 0; }
+
+        /**
+         * the batch was produced, it is the highest of its sender unless a higher one was already
+         *  bounded to Machine.RECENT_SENDERS like the batches of the machine
+         */
+        public void produced(long batch) {
+            Long highest = batches.remove(Machine.batchKey(batch));
+            batches.put(Machine.batchKey(batch), (highest != null && Long.compareUnsigned(highest, batch) > 0) ? highest : batch);
+            if (batches.size() > Machine.RECENT_SENDERS) batches.remove(batches.keySet().iterator().next());
+        }
+    }
+
+    private final Path dir;
+    private final int segmentSize;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private final Recovery recovery;
+
+    /**
+     * guarded by the monitor of the log
+     *  - first : the index of segments.get(0), the ones before were deleted by truncate
+     *  - current : the segment being written, position is the next free byte
+     *  - written : the global position (segment * segmentSize + position) after the last record
+     *  - flushed : every record before it is on the disk
+     */
+    private int first;
+    private MappedByteBuffer current;
+    private long written;
+    private long flushed;
+    private boolean closed = false;
+
+    private final AtomicLong forces = new AtomicLong();
+    private final AtomicLong appended = new AtomicLong();
+    private final Thread flusher;
+
+    /**
+     * open the log in dir (created if needed), replay it, then start the flusher
+     *
+     * @param dir the directory of the segments
+     * @param segmentSize the size of a segment, a record must fit in one
+     * @throws IOException if the segments can't be opened
+     */
+    public WriteAheadLog(Path dir, int segmentSize) throws IOException {
+        this(dir, segmentSize, new Recovery());
+    }
+
+    /**
+     * open the log from a checkpoint : the replay starts at from.position, on top of the state in from
+     *
+     * @param from the state of the log at its position, a new Recovery to replay the log from its start
+     * @throws IOException if the segments can't be opened, or the log was truncated after from.position
+     */
+    public WriteAheadLog(Path dir, int segmentSize, Recovery from) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.recovery = from;
+        this.first = (int) (from.position / segmentSize);
+        Files.createDirectories(dir);
+
+        for (int index = first; Files.exists(segmentPath(index)); ++index) {
+            segments.add(map(index));
+        }
+        if (segments.isEmpty()) {
+            try (Stream<Path> files = Files.list(dir)) {
+                if (files.anyMatch(f -> f.getFileName().toString().matches("wal-\\d{6}\\.log"))) {
+                    throw new IOException("The log in " + dir + " has no segment at position " + from.position
+                                          + ", it was truncated : open it from the checkpoint (snapshot) covering it");
+                }
+            }
+            segments.add(map(first));
+        }
+
+        replay();
+        this.flushed = this.written;
+
+        this.flusher = new Thread(this::flushLoop, "wal-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    //getters
+    public Recovery getRecovery() { return this.recovery; }
+    public long getForces() { return this.forces.get(); }
+    public long getAppended() { return this.appended.get(); }
+    public synchronized int getSegments() { return this.segments.size(); }
+
+    /**
+     * @return the position before which every record is on the disk
+     */
+    public synchronized long getFlushed() { return this.flushed; }
+
+    /**
+     * @return the mean number of records made durable by one force, the gain of the group commit
+     */
+    public double getRecordsPerForce() {
+        long f = forces.get();
+        return (f == 0) ? 0 : (double) appended.get() / f;
+    }
+
+    private Path segmentPath(int index) {
+        return dir.resolve(String.format("wal-%06d.log", index));
+    }
+
+    private MappedByteBuffer map(int index) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentPath(index), StandardOpenOption.CREATE,
+                                                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    /**
+     * read every valid record, the writing goes on right after the last one
+     *  a segment ends at a length of 0 (the next record did not fit), the log ends at the first torn record
+     *  what follows it (rest of the segment, later segments) is dropped
+     */
+    private void replay() throws IOException {
+        int index = 0;
+        int position = (int) (recovery.position % segmentSize);
+        boolean torn = false;
+
+        for (; index < segments.size(); ++index) {
+            ByteBuffer segment = segments.get(index).duplicate();
+            if (index > 0) position = 0;
+            while (position + 8 <= segmentSize) {
+                int length = segment.getInt(position);
+                if (length == 0) break;
+                if (length < 0 || position + 8 + length > segmentSize) {
+                    torn = true;
+                    break;
+                }
+
+                byte[] body = new byte[length];
+                segment.position(position + 8);
+                segment.get(body);
+                CRC32 crc = new CRC32();
+                crc.update(body);
+                if ((int) crc.getValue() != segment.getInt(position + 4)) {
+                    torn = true;
+                    break;
+                }
+
+                apply(recovery, ByteBuffer.wrap(body));
+                position += 8 + length;
+            }
+            if (torn || index + 1 == segments.size()) break;
+        }
+
+        while (segments.size() > index + 1) {
+            segments.remove(segments.size() - 1);
+            Files.delete(segmentPath(first + segments.size()));
+        }
+        current = segments.get(index);
+        for (int i = position; i < segmentSize; ++i) {
+            current.put(i, (byte) 0);
+        }
+        current.position(position);
+        written = (long) (first + index) * segmentSize + position;
+        recovery.position = written;
+    }
+
+    /**
+     * apply to state the records on the disk after state.position, for a checkpoint taken while the machine serves
+     *  the records before flushed are complete and never change, they are read without stopping the appends
+     *  state.position is moved after the last record applied
+     *
+     * @param state a checkpoint of this log
+     * @throws IllegalStateException if the segments after state.position were already truncated
+     */
+    public void catchUp(Recovery state) {
+        long target;
+        int from = (int) (state.position / segmentSize);
+        List<MappedByteBuffer> toRead;
+        synchronized (this) {
+            if (from < first) {
+                throw new IllegalStateException("The log was truncated after position " + state.position);
+            }
+            target = flushed;
+            toRead = new ArrayList<>(segments.subList(from - first,
+                                                      (int) Math.min(segments.size(), target / segmentSize + 1 - first)));
+        }
+
+        long position = state.position;
+        for (int i = 0; i < toRead.size() && position < target; ++i) {
+            ByteBuffer segment = toRead.get(i).duplicate();
+            long base = (long) (from + i) * segmentSize;
+            int offset = (int) (position - base);
+            while (offset + 8 <= segmentSize && base + offset < target) {
+                int length = segment.getInt(offset);
+                if (length == 0) break;
+                byte[] body = new byte[length];
+                segment.position(offset + 8);
+                segment.get(body);
+                apply(state, ByteBuffer.wrap(body));
+                offset += 8 + length;
+            }
+            // the rest of a segment is empty, the next record is at the start of the next one
+            position = (base + offset < target) ? base + segmentSize : base + offset;
+        }
+        state.position = position;
+    }
+
+    /**
+     * delete the segments holding only records before position, a checkpoint at position covers them
+     *  the segment of position is kept, and so is the one being written
+     *  a segment dropped is unmapped once the GC collected its buffer
+     *
+     * @return the number of segments deleted
+     * @throws IOException if a segment file can't be deleted
+     */
+    public int truncate(long position) throws IOException {
+        List<Path> dropped = new ArrayList<>();
+        synchronized (this) {
+            long limit = Math.min(position, flushed) / segmentSize;
+            while (first < limit && segments.size() > 1) {
+                segments.remove(0);
+                dropped.add(segmentPath(first++));
+            }
+        }
+        for (Path file : dropped) {
+            Files.deleteIfExists(file);
+        }
+        return dropped.size();
+    }
+
+    /**
+     * add the effect of one record to state
+     */
+    private static void apply(Recovery recovery, ByteBuffer body) {
+        byte flagged = body.get();
+        byte type = (byte) (flagged & ~OUTPUTS);
+        long tx = body.getLong();
+        int count = body.getShort();
+        recovery.records++;
+
+        if (type == PRODUCE && tx != 0) {
+            recovery.produced(tx);
+        }
+        if (type == CONSUME) {
+            recovery.commits.addLast(tx);
+            if (recovery.commits.size() > Machine.RECENT_COMMITS) recovery.commits.removeFirst();
+        }
+
+        applyEntries(recovery, body, type, tx, count);
+        if ((flagged & OUTPUTS) != 0) {
+            applyEntries(recovery, body, PRODUCE, tx, body.getShort());
+        }
+    }
+
+    private static void applyEntries(Recovery recovery, ByteBuffer body, byte type, long tx, int count) {
+        for (int i = 0; i < count; ++i) {
+            byte[] name = new byte[body.getShort()];
+            body.get(name);
+            Resource R = new Resource(new String(name, StandardCharsets.UTF_8));
+            int n = body.getInt();
+
+            int[] units = recovery.units.computeIfAbsent(R, k -> new int[2]);
+            switch (type) {
+                case DECLARE:
+                    units[0] += n;
+                    break;
+                case RESERVE:
+                    units[0] -= n;
+                    units[1] += n;
+                    recovery.held.computeIfAbsent(tx, k -> new HashMap<>()).merge(R, n, Integer::sum);
+                    break;
+                case CONSUME:
+                    units[1] -= n;
+                    release(recovery, tx, R, n);
+                    break;
+                case ABORT:
+                    units[1] -= n;
+                    units[0] += n;
+                    release(recovery, tx, R, n);
+                    break;
+                case PRODUCE:
+                    units[0] += n;
+                    break;
+                case TAKE:
+                    units[0] -= n;
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown record type " + type);
+            }
+        }
+    }
+
+    private static void release(Recovery recovery, long tx, Resource R, int n) {
+        Map<Resource, Integer> held = recovery.held.get(tx);
+        if (held == null) return;
+        held.merge(R, -n, Integer::sum);
+        if (held.get(R) <= 0) held.remove(R);
+        if (held.isEmpty()) recovery.held.remove(tx);
+    }
+
+    /**
+     * append one record, it is durable once await returns for the position given back
+     *
+     * @param type the type of the record
+     * @param tx the transaction, the batch for a PRODUCE of produceAll, 0 for DECLARE and a single PRODUCE
+     * @param entries the resources with their units
+     * @return the position after the record
+     * @throws IllegalStateException if the log is closed or can't grow
+     */
+    public long append(byte type, long tx, Map<Resource, Integer> entries) {
+        return append(type, tx, entries, Map.of());
+    }
+
+    /**
+     * append one record holding units taken (CONSUME or TAKE) and the units produced with them
+     *  without outputs it is a plain record of type
+     *
+     * @param outputs the resources produced with their units
+     */
+    public long append(byte type, long tx, Map<Resource, Integer> entries, Map<Resource, Integer> outputs) {
+        ByteBuffer body = outputs.isEmpty() ? encode(type, tx, entries)
+                                            : encode((byte) (type | OUTPUTS), tx, entries, outputs);
+        CRC32 crc = new CRC32();
+        crc.update(body.array(), 0, body.limit());
+
+        synchronized (this) {
+            if (closed) throw new IllegalStateException("Write-ahead log closed");
+
+            if (current.position() + 8 + body.limit() > segmentSize) {
+                roll();
+            }
+            int position = current.position();
+            current.position(position + 8);
+            current.put(body);
+            current.putInt(position + 4, (int) crc.getValue());
+            // the length last : a record is only visible once complete
+            current.putInt(position, body.limit());
+
+            written = (long) (first + segments.size() - 1) * segmentSize + current.position();
+            appended.incrementAndGet();
+            notifyAll();
+            return written;
+        }
+    }
+
+    @SafeVarargs
+    private static ByteBuffer encode(byte type, long tx, Map<Resource, Integer>... sections) {
+        List<byte[]> names = new ArrayList<>();
+        int size = 1 + 8;
+        for (Map<Resource, Integer> entries : sections) {
+            size += 2;
+            for (Resource R : entries.keySet()) {
+                byte[] name = R.toString().getBytes(StandardCharsets.UTF_8);
+                names.add(name);
+                size += 2 + name.length + 4;
+            }
+        }
+
+        ByteBuffer body = ByteBuffer.allocate(size);
+        body.put(type).putLong(tx);
+        int i = 0;
+        for (Map<Resource, Integer> entries : sections) {
+            body.putShort((short) entries.size());
+            for (int n : entries.values()) {
+                byte[] name = names.get(i++);
+                body.putShort((short) name.length).put(name).putInt(n);
+            }
+        }
+        body.flip();
+        return body;
+    }
+
+    /**
+     * move on to a new segment, the flusher forces the previous one completely
+     */
+    private void roll() {
+        try {
+            current = map(first + segments.size());
+            segments.add(current);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Could not create a new segment of the write-ahead log", e);
+        }
+    }
+
+    /**
+     * wait until the record ending at position is on the disk
+     */
+    public void await(long position) throws InterruptedException {
+        synchronized (this) {
+            while (flushed < position && !closed) {
+                wait();
+            }
+        }
+    }
+
+    /**
+     * the loop of the flusher : force what was written since the last force, then wake the waiting callers
+     */
+    private void flushLoop() {
+        while (true) {
+            long target;
+            long from;
+            List<MappedByteBuffer> toForce;
+            synchronized (this) {
+                while (written == flushed && !closed) {
+                    try {
+                        wait();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) return;
+                target = written;
+                from = flushed;
+                toForce = new ArrayList<>(segments.subList((int) (from / segmentSize) - first,
+                                                           (int) Math.min(segments.size(), target / segmentSize + 1 - first)));
+            }
+
+            int index = (int) (from / segmentSize);
+            for (int i = 0; i < toForce.size(); ++i) {
+                MappedByteBuffer segment = toForce.get(i);
+                int start = (i == 0) ? (int) (from % segmentSize) : 0;
+                int end = (index + i == target / segmentSize) ? (int) (target % segmentSize) : segmentSize;
+                if (end > start) segment.force(start, end - start);
+            }
+            forces.incrementAndGet();
+
+            synchronized (this) {
+                flushed = target;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * force what is left then stop the flusher, the callers still waiting are released
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            notifyAll();
+        }
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+}